@@ -1,5 +1,9 @@
 package cs107;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
 /**
  * Utility class to manipulate arrays.
  * @apiNote First Task of the 2022 Mini Project
@@ -233,28 +237,24 @@ public final class ArrayUtils {
             prevelem = elem;
         }
 
-        
-        byte[][] tab = new byte[input[0].length*input.length][4];
+        long start = QOIStatistics.start();
+        byte[][] tab = new byte[input[0].length*input.length][];
 
+        //Split each packed pixel directly in its channels, without intermediate arrays
         for(int i=0 ; i<input.length ; ++i){
-        int[] pixels = input[i];
+            int[] pixels = input[i];
             for(int j=0 ; j<pixels.length ; ++j){
-                byte[] comps = fromInt(pixels[j]);
-                for(int k=0 ; k<4 ; ++k){    
-                    switch(k){
-                        case 0 : 
-                        tab[j+i*pixels.length][QOISpecification.a] = comps[k]; break;
-                        case 1 : 
-                        tab[j+i*pixels.length][QOISpecification.r] = comps[k]; break;
-                        case 2 : 
-                        tab[j+i*pixels.length][QOISpecification.g] = comps[k]; break;
-                        case 3 : 
-                        tab[j+i*pixels.length][QOISpecification.b] = comps[k]; break;
-                    }                    
-                }
-            } 
+                int pixel = pixels[j];
+                byte[] comps = new byte[4];
+                comps[QOISpecification.r] = (byte) (pixel >> 16);
+                comps[QOISpecification.g] = (byte) (pixel >> 8);
+                comps[QOISpecification.b] = (byte) pixel;
+                comps[QOISpecification.a] = (byte) (pixel >> 24);
+                tab[j+i*pixels.length] = comps;
+            }
         }
 
+        if(QOIStatistics.ENABLED) QOIStatistics.current().time(QOIStatistics.Phase.CONVERSION, start);
         return tab;
     }
 
@@ -281,27 +281,215 @@ public final class ArrayUtils {
         }
         assert input.length == height*width;
 
+        long start = QOIStatistics.start();
         int[][] tab = new int[height][width];
-        byte[][] pixels = new byte[input.length][4];
-
-        //Transform rgb-a to a-rgb
-        for(int i=0 ; i<pixels.length ; ++i){
-            pixels[i][0] = input[i][QOISpecification.a];
-            pixels[i][1] = input[i][QOISpecification.r];
-            pixels[i][2] = input[i][QOISpecification.g];
-            pixels[i][3] = input[i][QOISpecification.b];
-        }
 
-        //Fills tab with transformed pixels and to Int
+        //Transform rgb-a to a-rgb, packed in one integer
         for(int i=0 ; i<height ; ++i){
+            int[] row = tab[i];
             for(int j=0 ; j<width ; ++j){
-                tab[i][j] = toInt(pixels[j+i*width]);
+                byte[] pixel = input[j+i*width];
+                row[j] = (pixel[QOISpecification.a] & 0xFF) << 24 | (pixel[QOISpecification.r] & 0xFF) << 16
+                        | (pixel[QOISpecification.g] & 0xFF) << 8 | pixel[QOISpecification.b] & 0xFF;
             }
         }
 
+        if(QOIStatistics.ENABLED) QOIStatistics.current().time(QOIStatistics.Phase.CONVERSION, start);
+        return tab;
+    }
+
+    /**
+     * Format a 2-dim integer array where each dimension is a direction in the image
+     * to a 1-dim integer array where each pixel is packed (ARGB) in one integer.
+     * The rows of the image are stored one after the other.
+     * @param input (int[][]) - image data
+     * @return (int[]) - packed image data
+     * @throws AssertionError if the input is null
+     * or one of the inner arrays of input is null
+     * or the inner arrays have different lengths
+     */
+    public static int[] imageToPixels(int[][] input){
+        assert input != null && input.length > 0;
+        assert input[0] != null;
+
+        long start = QOIStatistics.start();
+        int width = input[0].length;
+        int[] pixels = new int[width*input.length];
+
+        for(int i=0 ; i<input.length ; ++i){
+            assert input[i] != null && input[i].length == width;
+            System.arraycopy(input[i], 0, pixels, i*width, width);
+        }
+
+        if(QOIStatistics.ENABLED) QOIStatistics.current().time(QOIStatistics.Phase.CONVERSION, start);
+        return pixels;
+    }
+
+    /**
+     * Format a 2-dim byte array where the first dimension is the pixel
+     * and the second is the channel (RGBA) to a 1-dim integer array
+     * where each pixel is packed (ARGB) in one integer
+     * @param input (byte[][]) - linear representation of the image
+     * @return (int[]) - packed image data
+     * @throws AssertionError if the input is null
+     * or one of the inner arrays of input is null or its length is not 4
+     */
+    public static int[] channelsToPixels(byte[][] input){
+        assert input != null;
+
+        int[] pixels = new int[input.length];
+
+        for(int i=0 ; i<input.length ; ++i){
+            byte[] pixel = input[i];
+            assert pixel != null && pixel.length == 4;
+            pixels[i] = (pixel[QOISpecification.a] & 0xFF) << 24 | (pixel[QOISpecification.r] & 0xFF) << 16
+                    | (pixel[QOISpecification.g] & 0xFF) << 8 | pixel[QOISpecification.b] & 0xFF;
+        }
+
+        return pixels;
+    }
+
+    /**
+     * Format a 1-dim integer array where each pixel is packed (ARGB) in one integer
+     * to a 2-dim byte array where the first dimension is the pixel
+     * and the second is the channel (RGBA)
+     * @param input (int[]) - packed image data
+     * @return (byte[][]) - linear representation of the image
+     * @throws AssertionError if the input is null
+     */
+    public static byte[][] pixelsToChannels(int[] input){
+        assert input != null;
+
+        byte[][] tab = new byte[input.length][4];
+
+        for(int i=0 ; i<input.length ; ++i){
+            int pixel = input[i];
+            tab[i][QOISpecification.r] = (byte) (pixel >> 16);
+            tab[i][QOISpecification.g] = (byte) (pixel >> 8);
+            tab[i][QOISpecification.b] = (byte) pixel;
+            tab[i][QOISpecification.a] = (byte) (pixel >> 24);
+        }
+
+        return tab;
+    }
+
+    /**
+     * Format a 1-dim integer array of packed (ARGB) pixels to a 2-dim int array
+     * where the first dimension is the height and the second is the width
+     * @param input (int[]) - packed representation of the image
+     * @param height (int) - Height of the resulting image
+     * @param width (int) - Width of the resulting image
+     * @return (int[][]) - the image data
+     * @throws AssertionError if the input is null
+     * or input's length differs from width * height
+     * or height is invalid
+     * or width is invalid
+     */
+    public static int[][] pixelsToImage(int[] input, int height, int width){
+        assert input != null;
+        assert height > 0 && width > 0;
+        assert input.length == height*width;
+
+        long start = QOIStatistics.start();
+        int[][] tab = new int[height][width];
+
+        for(int i=0 ; i<height ; ++i){
+            System.arraycopy(input, i*width, tab[i], 0, width);
+        }
+
+        if(QOIStatistics.ENABLED) QOIStatistics.current().time(QOIStatistics.Phase.CONVERSION, start);
         return tab;
     }
 
+    // ==================================================================================
+    // ========================== BULK PIXEL CONVERSION METHODS =========================
+    // ==================================================================================
+
+    // View of a byte array as "Big Endian" integers, at any byte offset
+    private static final VarHandle INT_BIG_ENDIAN = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
+    /**
+     * Convert packed (ARGB) pixels to interleaved bytes, RGBA or RGB depending on the channels.
+     * Each pixel is swizzled as one integer (a rotation) and stored with one 4 bytes write
+     * @apiNote With 3 channels the alpha is dropped. No memory is allocated
+     * @param pixels (int[]) - Packed pixels to convert
+     * @param from (int) - Index of the first pixel to convert (inclusive)
+     * @param to (int) - Index of the last pixel to convert (exclusive)
+     * @param channels (byte) - Number of bytes per pixel, QOISpecification.RGB or QOISpecification.RGBA
+     * @param output (byte[]) - Buffer where to store the bytes
+     * @param offset (int) - Index in the output of the first byte
+     * @return (int) - The number of written bytes
+     * @throws AssertionError if one of the arrays is null, the channels are invalid
+     * or the output is too small
+     */
+    public static int pixelsToBytes(int[] pixels, int from, int to, byte channels, byte[] output, int offset){
+        assert pixels != null && output != null;
+        assert channels == QOISpecification.RGB || channels == QOISpecification.RGBA;
+        assert from >= 0 && from <= to && to <= pixels.length;
+        assert offset >= 0 && offset + (to - from) * channels <= output.length;
+
+        int idx = offset;
+        if(channels == QOISpecification.RGBA){
+            for(int i=from ; i<to ; ++i, idx += 4){
+                INT_BIG_ENDIAN.set(output, idx, Integer.rotateLeft(pixels[i], 8));
+            }
+            return idx - offset;
+        }
+
+        // The 4th byte of each write is overwritten by the next pixel, except for the last one
+        int last = to - 1;
+        for(int i=from ; i<last ; ++i, idx += 3){
+            INT_BIG_ENDIAN.set(output, idx, pixels[i] << 8);
+        }
+        if(from < to){
+            output[idx] = (byte) (pixels[last] >> 16);
+            output[idx+1] = (byte) (pixels[last] >> 8);
+            output[idx+2] = (byte) pixels[last];
+            idx += 3;
+        }
+        return idx - offset;
+    }
+
+    /**
+     * Convert interleaved bytes, RGBA or RGB depending on the channels, to packed (ARGB) pixels.
+     * Each pixel is read with one 4 bytes read and swizzled as one integer
+     * @apiNote With 3 channels the pixels are opaque. No memory is allocated
+     * @param input (byte[]) - Bytes to convert
+     * @param offset (int) - Index in the input of the first byte
+     * @param channels (byte) - Number of bytes per pixel, QOISpecification.RGB or QOISpecification.RGBA
+     * @param pixels (int[]) - Buffer where to store the packed pixels
+     * @param from (int) - Index of the first pixel to write (inclusive)
+     * @param to (int) - Index of the last pixel to write (exclusive)
+     * @return (int) - The number of read bytes
+     * @throws AssertionError if one of the arrays is null, the channels are invalid
+     * or the input is too small
+     */
+    public static int bytesToPixels(byte[] input, int offset, byte channels, int[] pixels, int from, int to){
+        assert input != null && pixels != null;
+        assert channels == QOISpecification.RGB || channels == QOISpecification.RGBA;
+        assert from >= 0 && from <= to && to <= pixels.length;
+        assert offset >= 0 && offset + (to - from) * channels <= input.length;
+
+        int idx = offset;
+        if(channels == QOISpecification.RGBA){
+            for(int i=from ; i<to ; ++i, idx += 4){
+                pixels[i] = Integer.rotateRight((int) INT_BIG_ENDIAN.get(input, idx), 8);
+            }
+            return idx - offset;
+        }
+
+        // The 4th byte of each read belongs to the next pixel, except for the last one
+        int last = to - 1;
+        for(int i=from ; i<last ; ++i, idx += 3){
+            pixels[i] = 0xFF_00_00_00 | (int) INT_BIG_ENDIAN.get(input, idx) >>> 8;
+        }
+        if(from < to){
+            pixels[last] = 0xFF_00_00_00 | (input[idx] & 0xFF) << 16 | (input[idx+1] & 0xFF) << 8 | input[idx+2] & 0xFF;
+            idx += 3;
+        }
+        return idx - offset;
+    }
+
     // ==================================================================================
     // ============================ STUDENT'S ADDED METHODS =============================
     // ==================================================================================
@@ -0,0 +1,352 @@
+package cs107;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Micro-benchmarks of the "Quite Ok Image" codec over a folder of images
+ * (by default "references/"). Each image is expected as a "PNG" file with the
+ * corresponding "QOI" file next to it.
+ * For each operation, the throughput is reported in MB/s of raw pixels (4 bytes per pixel)
+ * and in pixels/s, with the allocation rate of the benchmark thread.
+ * @apiNote Usage : java cs107.Benchmark [folder] [-w warmup_ms] [-m measure_ms] [-f filter]
+ * [-o results.tsv] [-b baseline.tsv]. A results file written with -o can be given back
+ * with -b to print the speedup against this baseline. With -Dcs107.statistics=true,
+ * the statistics of the codec over all the benchmarks are printed at the end (See QOIStatistics).
+ * @version 1.3
+ * @since 1.3
+ */
+public final class Benchmark {
+
+    // ============================================================================================
+    // ==================================== BENCHMARK API =========================================
+    // ============================================================================================
+
+    /**
+     * Main entry point of the benchmarks
+     * @param args (String[]) - Arguments passed to the program via the command line
+     */
+    public static void main(String[] args){
+        var folder = "references";
+        long warmup = 1000;
+        long measure = 2000;
+        String filter = null;
+        String output = null;
+        String baseline = null;
+        for(var i = 0; i < args.length; ++i){
+            switch (args[i]){
+                case "-w" -> warmup = Long.parseLong(args[++i]);
+                case "-m" -> measure = Long.parseLong(args[++i]);
+                case "-f" -> filter = args[++i];
+                case "-o" -> output = args[++i];
+                case "-b" -> baseline = args[++i];
+                default -> folder = args[i];
+            }
+        }
+
+        var results = run(folder, warmup, measure, filter);
+        var reference = baseline == null ? Map.<String, Double>of() : readBaseline(baseline);
+
+        System.out.printf("%-18s %-20s %12s %14s %12s %10s %9s%n",
+                "image", "operation", "MB/s", "pixels/s", "alloc MB/s", "B/pixel", "speedup");
+        for(var result : results){
+            var speedup = reference.get(result.key());
+            System.out.printf("%-18s %-20s %12.1f %14.0f %12.1f %10.2f %9s%n",
+                    result.image, result.operation, result.megabytesPerSecond(), result.pixelsPerSecond(),
+                    result.allocatedMegabytesPerSecond(), result.allocatedBytesPerPixel(),
+                    speedup == null ? "-" : String.format("%.2fx", result.pixelsPerSecond() / speedup));
+        }
+
+        if(output != null)
+            writeResults(output, results);
+        if(QOIStatistics.ENABLED)
+            System.out.print(QOIStatistics.snapshot().report());
+    }
+
+    /**
+     * Run all the benchmarks over the images of the folder
+     * @param folder (String) - Folder containing the "PNG" and "QOI" images
+     * @param warmup (long) - Duration of the warm up of each benchmark, in milliseconds
+     * @param measure (long) - Duration of the measure of each benchmark, in milliseconds
+     * @param filter (String) - Only run the operations whose name contains it, or all if null
+     * @return (List) - The results, one per image and operation
+     */
+    public static List<Result> run(String folder, long warmup, long measure, String filter){
+        var files = new File(folder).listFiles((dir, name) -> name.endsWith(".png"));
+        if(files == null)
+            return Helper.fail("Cannot list the images of '%s'", folder);
+        Arrays.sort(files);
+
+        var results = new ArrayList<Result>();
+        for(var file : files){
+            var name = file.getName().substring(0, file.getName().length() - 4);
+            var qoi = new File(folder, name + ".qoi");
+            if(!qoi.exists())
+                continue;
+            var image = Helper.readImage(file.getPath());
+            var content = Helper.read(qoi.getPath());
+            for(var operation : operations(image, content).entrySet()){
+                if(filter != null && !operation.getKey().contains(filter))
+                    continue;
+                var pixels = (long) image.data().length * image.data()[0].length;
+                results.add(measure(name, operation.getKey(), pixels, operation.getValue(), warmup, measure));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Result of one benchmark
+     * @param image (String) - Name of the image
+     * @param operation (String) - Name of the operation
+     * @param pixels (long) - Number of processed pixels
+     * @param nanos (long) - Duration of the measure
+     * @param allocated (long) - Number of bytes allocated during the measure
+     */
+    public record Result(String image, String operation, long pixels, long nanos, long allocated){
+
+        /**
+         * @return (double) - Number of pixels processed per second
+         */
+        public double pixelsPerSecond(){
+            return pixels * 1e9 / nanos;
+        }
+
+        /**
+         * @return (double) - Raw pixel data (4 bytes per pixel) processed per second, in MB
+         */
+        public double megabytesPerSecond(){
+            return pixelsPerSecond() * 4 / 1e6;
+        }
+
+        /**
+         * @return (double) - Memory allocated per second, in MB
+         */
+        public double allocatedMegabytesPerSecond(){
+            return allocated * 1e9 / nanos / 1e6;
+        }
+
+        /**
+         * @return (double) - Memory allocated per processed pixel, in bytes
+         */
+        public double allocatedBytesPerPixel(){
+            return (double) allocated / pixels;
+        }
+
+        private String key(){
+            return image + '\t' + operation;
+        }
+    }
+
+    // ============================================================================================
+
+    // Hide default constructor
+    private Benchmark(){}
+
+    // Results of the benchmarked operations, folded in here so that the JIT cannot drop them
+    private static long sink;
+
+    /**
+     * List the operations to benchmark on an image. Each operation processes
+     * every pixel of the image once and returns a value depending on its output
+     * @param image (Helper.Image) - Decoded image
+     * @param content (byte[]) - Content of the "QOI" file of the image
+     * @return (Map) - Operations by name, in the order they are run
+     */
+    private static Map<String, LongSupplier> operations(Helper.Image image, byte[] content){
+        var channels = ArrayUtils.imageToChannels(image.data());
+        var height = image.data().length;
+        var width = image.data()[0].length;
+
+        // Valid inputs of the atomic methods, derived from the pixels of the image
+        var diffs = new byte[channels.length][];
+        var lumas = new byte[channels.length][];
+        var diffChunks = new byte[channels.length];
+        var lumaChunks = new byte[channels.length][];
+        for(var i = 0; i < channels.length; ++i){
+            var p = channels[i];
+            diffs[i] = new byte[]{(byte) ((p[0] & 0b11) - 2), (byte) ((p[1] & 0b11) - 2), (byte) ((p[2] & 0b11) - 2)};
+            var dg = (p[1] & 0b11_11_11) - 32;
+            lumas[i] = new byte[]{(byte) (dg + (p[0] & 0b11_11) - 8), (byte) dg, (byte) (dg + (p[2] & 0b11_11) - 8)};
+            diffChunks[i] = (byte) (QOISpecification.QOI_OP_DIFF_TAG | (p[0] & 0b11_11_11));
+            lumaChunks[i] = new byte[]{(byte) (QOISpecification.QOI_OP_LUMA_TAG | (p[1] & 0b11_11_11)), p[2]};
+        }
+        var runBuffer = new byte[64][4];
+        var compressed = compress(content);
+        var pixels = ArrayUtils.imageToPixels(image.data());
+        var bytes = new byte[pixels.length * 4];
+        var direct = ByteBuffer.allocateDirect(pixels.length * 4);
+        var cache = new QOIEncodeCache(2L * content.length);
+        var decodeCache = new QOIDecodeCache(8L * pixels.length);
+        // One pixel changed in the middle of the image
+        var sidecar = QOIRestartIndex.build(content, 4096);
+        var editedData = Arrays.stream(image.data()).map(int[]::clone).toArray(int[][]::new);
+        editedData[height / 2][width / 2] ^= 0x00_FF_FF_FF;
+        var edited = Helper.generateImage(editedData, image.channels(), image.color_space());
+
+        var operations = new LinkedHashMap<String, LongSupplier>();
+        operations.put("qoiFile", () -> QOIEncoder.qoiFile(image).length);
+        operations.put("qoiFileContext", () -> QOIEncoderContext.current().qoiFile(image));
+        operations.put("qoiFileCached", () -> cache.qoiFile(image).length);
+        operations.put("hashImage", () -> QOIEncodeCache.hash(image));
+        operations.put("reencode", () -> QOIRestartIndex.reencode(content, sidecar, edited, width / 2, height / 2, 1, 1).content().length);
+        operations.put("qoiFileParallel", () -> QOIEncoder.qoiFile(image, Runtime.getRuntime().availableProcessors()).length);
+        operations.put("qoizFile", () -> compress(content).length);
+        operations.put("decodeQoizFile", () -> {
+            try(var reader = new QOIReader(new QOIZInputStream(new ByteArrayInputStream(compressed)))){
+                long h = 0;
+                for(var row = reader.nextRow(); row != null; row = reader.nextRow()) h += row[0];
+                return h;
+            }catch (IOException e){
+                return Helper.fail("Cannot decompress the image");
+            }
+        });
+        operations.put("decodeQoiFile", () -> QOIDecoder.decodeQoiFile(content).data()[height - 1][width - 1]);
+        operations.put("decodeQoiFileContext", () -> QOIDecoderContext.current().decodeQoiFile(content));
+        operations.put("decodeDirect", () -> QOIDecoder.decodeQoiFile(content, direct, 0, QOIDecoder.Layout.BGRA, 4 * width)[0] + direct.get(0));
+        operations.put("decodeQoiFileCached", () -> decodeCache.decodeQoiFile(content).data()[height - 1][width - 1]);
+        operations.put("decodeRegion", () -> QOIDecoder.decodeRegion(content, width / 4, height / 4, width / 2, height / 2).data()[0][0]);
+        operations.put("decodeThumbnail", () -> QOIDecoder.decodeThumbnail(content, 4, true).data()[0][0]);
+        operations.put("imageToChannels", () -> ArrayUtils.imageToChannels(image.data()).length);
+        operations.put("channelsToImage", () -> ArrayUtils.channelsToImage(channels, height, width)[height - 1][width - 1]);
+        operations.put("pixelsToBytes", () -> ArrayUtils.pixelsToBytes(pixels, 0, pixels.length, QOISpecification.RGBA, bytes, 0) + bytes[0]);
+        operations.put("bytesToPixels", () -> ArrayUtils.bytesToPixels(bytes, 0, QOISpecification.RGBA, pixels, 0, pixels.length) + pixels[0]);
+        operations.put("qoiOpRGB", () -> {
+            long h = 0;
+            for(var p : channels) h += QOIEncoder.qoiOpRGB(p)[1];
+            return h;
+        });
+        operations.put("qoiOpRGBA", () -> {
+            long h = 0;
+            for(var p : channels) h += QOIEncoder.qoiOpRGBA(p)[4];
+            return h;
+        });
+        operations.put("qoiOpIndex", () -> {
+            long h = 0;
+            for(var p : channels) h += QOIEncoder.qoiOpIndex(QOISpecification.hash(p))[0];
+            return h;
+        });
+        operations.put("qoiOpDiff", () -> {
+            long h = 0;
+            for(var d : diffs) h += QOIEncoder.qoiOpDiff(d)[0];
+            return h;
+        });
+        operations.put("qoiOpLuma", () -> {
+            long h = 0;
+            for(var d : lumas) h += QOIEncoder.qoiOpLuma(d)[1];
+            return h;
+        });
+        operations.put("qoiOpRun", () -> {
+            long h = 0;
+            for(var i = 0; i < channels.length; ++i) h += QOIEncoder.qoiOpRun((byte) (1 + i % 61))[0];
+            return h;
+        });
+        operations.put("decodeQoiOpRGB", () -> {
+            var buffer = new byte[channels.length][];
+            for(var i = 0; i < channels.length; ++i) QOIDecoder.decodeQoiOpRGB(buffer, channels[i], (byte) -1, i, 0);
+            return buffer[channels.length - 1][0];
+        });
+        operations.put("decodeQoiOpRGBA", () -> {
+            var buffer = new byte[channels.length][];
+            for(var i = 0; i < channels.length; ++i) QOIDecoder.decodeQoiOpRGBA(buffer, channels[i], i, 0);
+            return buffer[channels.length - 1][0];
+        });
+        operations.put("decodeQoiOpDiff", () -> {
+            var previous = QOISpecification.START_PIXEL;
+            for(var chunk : diffChunks) previous = QOIDecoder.decodeQoiOpDiff(previous, chunk);
+            return previous[0];
+        });
+        operations.put("decodeQoiOpLuma", () -> {
+            var previous = QOISpecification.START_PIXEL;
+            for(var chunk : lumaChunks) previous = QOIDecoder.decodeQoiOpLuma(previous, chunk);
+            return previous[0];
+        });
+        operations.put("decodeQoiOpRun", () -> {
+            long h = 0;
+            // One run of a single pixel per pixel of the image
+            for(var p : channels) h += QOIDecoder.decodeQoiOpRun(runBuffer, p, QOISpecification.QOI_OP_RUN_TAG, 0);
+            return h + runBuffer[0][0];
+        });
+        return operations;
+    }
+
+    /**
+     * Compress a "QOI" file in a compressed container (See QOIZOutputStream)
+     * @param content (byte[]) - Content of the "QOI" file
+     * @return (byte[]) - Content of the container
+     */
+    private static byte[] compress(byte[] content){
+        var output = new ByteArrayOutputStream(content.length);
+        try(var compressed = new QOIZOutputStream(output)){
+            compressed.write(content);
+        }catch (IOException e){
+            return Helper.fail("Cannot compress the image");
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * Run an operation repeatedly during the warm up, then during the measure
+     * @return (Result) - Throughput and allocations of the measure
+     */
+    private static Result measure(String image, String name, long pixels, LongSupplier operation, long warmup, long measure){
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        var thread = Thread.currentThread().getId();
+
+        var end = System.nanoTime() + warmup * 1_000_000;
+        while(System.nanoTime() < end)
+            sink += operation.getAsLong();
+
+        long iterations = 0;
+        var allocated = threads.getThreadAllocatedBytes(thread);
+        var start = System.nanoTime();
+        end = start + measure * 1_000_000;
+        long now;
+        do{
+            sink += operation.getAsLong();
+            ++iterations;
+            now = System.nanoTime();
+        }while(now < end);
+        allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+
+        return new Result(image, name, pixels * iterations, now - start, allocated);
+    }
+
+    private static void writeResults(String path, List<Result> results){
+        try(var output = new PrintStream(new FileOutputStream(path))){
+            for(var result : results)
+                output.printf("%s\t%.1f%n", result.key(), result.pixelsPerSecond());
+        }catch (IOException e){
+            Helper.fail("An error occurred while trying to write to : \"%s\"%n", path);
+        }
+    }
+
+    private static Map<String, Double> readBaseline(String path){
+        try{
+            var baseline = new HashMap<String, Double>();
+            for(var line : Files.readAllLines(Path.of(path))){
+                var cut = line.lastIndexOf('\t');
+                baseline.put(line.substring(0, cut), Double.parseDouble(line.substring(cut + 1)));
+            }
+            return baseline;
+        }catch (IOException e){
+            return Helper.fail("An error occurred while trying to read from : \"%s\"%n", path);
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+package cs107;
+
+/**
+ * Steps of the 64-bit hashes of the caches (See QOIEncodeCache.hash and QOIDecodeCache.hash).
+ * A hash mixes its values in 4 independent lanes with round, merges the lanes, mixes the
+ * remaining values and the sizes, then ends with avalanche
+ * @version 1.3
+ * @since 1.3
+ */
+final class Hash64 {
+
+    static final long PRIME_1 = 0x9E3779B185EBCA87L;
+    static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+
+    // Hide default constructor
+    private Hash64(){}
+
+    /**
+     * Mix a value in a lane
+     * @param h (long) - Current value of the lane
+     * @param value (long) - Value to mix
+     * @return (long) - The new value of the lane
+     */
+    static long round(long h, long value){
+        return Long.rotateLeft(h + value * PRIME_2, 31) * PRIME_1;
+    }
+
+    /**
+     * Merge the 4 lanes in one value
+     * @param h0 (long) - First lane
+     * @param h1 (long) - Second lane
+     * @param h2 (long) - Third lane
+     * @param h3 (long) - Fourth lane
+     * @return (long) - The merged lanes
+     */
+    static long merge(long h0, long h1, long h2, long h3){
+        return Long.rotateLeft(h0, 1) + Long.rotateLeft(h1, 7) + Long.rotateLeft(h2, 12) + Long.rotateLeft(h3, 18);
+    }
+
+    /**
+     * Final avalanche, so that every bit of the content moves all the bits of the hash
+     * @param h (long) - Value to mix
+     * @return (long) - The hash
+     */
+    static long avalanche(long h){
+        h ^= h >>> 33;
+        h *= PRIME_2;
+        h ^= h >>> 29;
+        h *= PRIME_1;
+        return h ^ h >>> 32;
+    }
+
+}
@@ -2,10 +2,18 @@ package cs107;
 
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 
 /**
@@ -92,17 +100,25 @@ public final class Helper {
      * @return (Image) - The corresponding Image
      */
     public static Image readImage(String path) {
+        var event = new QOIEvents.ImageRead();
+        event.begin();
         try{
             var io = ImageIO.read(new File(path));
             var width  = io.getWidth();
             var height = io.getHeight();
-            var array = new int[height][width];
-            for(var x = 0; x < height;++x){
-                for(var y = 0 ;y < width; ++y){
-                    array[x][y] = io.getRGB(y, x);
+            var array = readRaster(io);
+            if(array == null){
+                // Exotic color model, let Java2D convert each pixel
+                array = new int[height][width];
+                for(var x = 0; x < height;++x){
+                    for(var y = 0 ;y < width; ++y){
+                        array[x][y] = io.getRGB(y, x);
+                    }
                 }
             }
             var nbrChannels = (byte) (io.getColorModel().hasAlpha() ? 4 : 3);
+            if(event.shouldCommit())
+                event.end(path, width, height, nbrChannels, new File(path).length(), 4L * width * height);
             return new Image(array, nbrChannels, (byte) 0);
         }catch (IOException e){
             return fail("An error occurred while trying to read from : \"%s\"%n", path);
@@ -116,25 +132,134 @@ public final class Helper {
      * @param image (Image) - Image to store
      */
     public static void writeImage(String path, Image image) {
+        var event = new QOIEvents.ImageWrite();
+        event.begin();
         int type = switch (image.channels){
             case 3 -> BufferedImage.TYPE_3BYTE_BGR;
             case 4 -> BufferedImage.TYPE_4BYTE_ABGR;
             default -> fail("Cannot write this image, image.channels() == %d", image.channels);
         };
         var buffer = new BufferedImage(image.data[0].length, image.data.length, type);
-        for(var x = 0; x < buffer.getHeight(); ++x){
-            for(var y = 0 ; y < buffer.getWidth(); ++y){
-                buffer.setRGB(y, x, image.data[x][y]);
+        if(!writeRaster(buffer, image.data)){
+            for(var x = 0; x < buffer.getHeight(); ++x){
+                for(var y = 0 ; y < buffer.getWidth(); ++y){
+                    buffer.setRGB(y, x, image.data[x][y]);
+                }
             }
         }
         var abs_path = res_folder + File.separator + path;
         try {
             ImageIO.write(buffer, "png", new File(abs_path));
+            if(event.shouldCommit())
+                event.end(abs_path, buffer.getWidth(), buffer.getHeight(), image.channels,
+                        4L * buffer.getWidth() * buffer.getHeight(), new File(abs_path).length());
         }catch (IOException e){
             fail("An error occurred while trying to write to : \"%s\"%n", abs_path);
         }
     }
 
+    /**
+     * Read the pixels of the image in bulk from its raster, without any color conversion.
+     * Only the common layouts (TYPE_INT_ARGB, TYPE_INT_RGB, TYPE_4BYTE_ABGR and TYPE_3BYTE_BGR)
+     * stored in a standard raster are supported
+     * @param io (BufferedImage) - Image to read
+     * @return (int[][]) - ARGB stored pixels or null if the layout is not supported
+     */
+    private static int[][] readRaster(BufferedImage io){
+        var width  = io.getWidth();
+        var height = io.getHeight();
+        var array = new int[height][width];
+        switch (io.getType()){
+            case BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_INT_RGB -> {
+                if(!isStandardRaster(io, 1))
+                    return null;
+                var data = ((DataBufferInt) io.getRaster().getDataBuffer()).getData();
+                var alpha = io.getType() == BufferedImage.TYPE_INT_RGB ? 0xFF_00_00_00 : 0;
+                for(var x = 0; x < height; ++x){
+                    var row = array[x];
+                    for(int y = 0, k = x * width; y < width; ++y, ++k){
+                        row[y] = data[k] | alpha;
+                    }
+                }
+            }
+            case BufferedImage.TYPE_4BYTE_ABGR -> {
+                if(!isStandardRaster(io, 4))
+                    return null;
+                var data = ((DataBufferByte) io.getRaster().getDataBuffer()).getData();
+                for(var x = 0; x < height; ++x){
+                    var row = array[x];
+                    for(int y = 0, k = x * width * 4; y < width; ++y, k += 4){
+                        row[y] = (data[k] & 0xFF) << 24 | (data[k + 3] & 0xFF) << 16 | (data[k + 2] & 0xFF) << 8 | data[k + 1] & 0xFF;
+                    }
+                }
+            }
+            case BufferedImage.TYPE_3BYTE_BGR -> {
+                if(!isStandardRaster(io, 3))
+                    return null;
+                var data = ((DataBufferByte) io.getRaster().getDataBuffer()).getData();
+                for(var x = 0; x < height; ++x){
+                    var row = array[x];
+                    for(int y = 0, k = x * width * 3; y < width; ++y, k += 3){
+                        row[y] = 0xFF_00_00_00 | (data[k + 2] & 0xFF) << 16 | (data[k + 1] & 0xFF) << 8 | data[k] & 0xFF;
+                    }
+                }
+            }
+            default -> {
+                return null;
+            }
+        }
+        return array;
+    }
+
+    /**
+     * Write the pixels of the image in bulk in the raster, without any color conversion.
+     * Only TYPE_4BYTE_ABGR and TYPE_3BYTE_BGR stored in a standard raster are supported
+     * @param buffer (BufferedImage) - Image to write to
+     * @param data (int[][]) - ARGB stored pixels
+     * @return (boolean) - true if the pixels were written, false if the layout is not supported
+     */
+    private static boolean writeRaster(BufferedImage buffer, int[][] data){
+        var type = buffer.getType();
+        var channels = type == BufferedImage.TYPE_4BYTE_ABGR ? 4 : type == BufferedImage.TYPE_3BYTE_BGR ? 3 : 0;
+        if(channels == 0 || !isStandardRaster(buffer, channels))
+            return false;
+
+        var bytes = ((DataBufferByte) buffer.getRaster().getDataBuffer()).getData();
+        var k = 0;
+        for(var row : data){
+            for(var pixel : row){
+                if(channels == 4)
+                    bytes[k++] = (byte) (pixel >>> 24);
+                bytes[k++] = (byte) pixel;
+                bytes[k++] = (byte) (pixel >> 8);
+                bytes[k++] = (byte) (pixel >> 16);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Check that the raster of the image is stored the way its type describes it :
+     * one bank, no offset and rows stored one after the other
+     * @param image (BufferedImage) - Image to check
+     * @param stride (int) - Number of elements of the data buffer used by one pixel
+     * @return (boolean) - true if the raster can be accessed in bulk
+     */
+    private static boolean isStandardRaster(BufferedImage image, int stride){
+        var raster = image.getRaster();
+        var buffer = raster.getDataBuffer();
+        if(raster.getSampleModelTranslateX() != 0 || raster.getSampleModelTranslateY() != 0
+                || buffer.getNumBanks() != 1 || buffer.getOffset() != 0)
+            return false;
+        var width = image.getWidth();
+        if(raster.getSampleModel() instanceof SinglePixelPackedSampleModel sm)
+            return stride == 1 && sm.getScanlineStride() == width;
+        if(raster.getSampleModel() instanceof ComponentSampleModel sm)
+            return sm.getPixelStride() == stride && sm.getScanlineStride() == width * stride
+                    && Arrays.equals(sm.getBandOffsets(), stride == 4 ? new int[]{3, 2, 1, 0} : new int[]{2, 1, 0});
+        return false;
+    }
+
     // ==================================================================================
     // ======================== BINARY FILE MANIPULATION METHODS ========================
     // ==================================================================================
@@ -145,25 +270,48 @@ public final class Helper {
      * @return (byte[]) - File content as stored in memory
      */
     public static byte[] read(String path) {
+        var event = new QOIEvents.FileRead();
+        event.begin();
         try(var input = new FileInputStream(path)){
-            return input.readAllBytes();
+            var content = input.readAllBytes();
+            event.end(path, 0, 0, (byte) 0, content.length, content.length);
+            return content;
         } catch (IOException e){
             return fail("An error occurred while trying to read from : \"%s\"%n", path);
         }
     }
 
+    /**
+     * Map a file stored in the disk in memory, without copying it on the heap
+     * @apiNote The mapping stays valid after this call, until the buffer is garbage collected
+     * @param path (String) - Relative or Absolute path to the file
+     * @return (MappedByteBuffer) - Read-only view of the file content
+     */
+    public static MappedByteBuffer map(String path) {
+        try(var channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)){
+            if(channel.size() > Integer.MAX_VALUE)
+                fail("File \"%s\" is too large to be mapped (%d bytes)%n", path, channel.size());
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e){
+            return fail("An error occurred while trying to map : \"%s\"%n", path);
+        }
+    }
+
     /**
      * Write a file to the disk. This function writes to the folder called "res/"
      * @param path (String) - Relative or Absolute path to the file
      * @param content (byte[]) - Content of the file.
      */
     public static void write(String path, byte[] content){
+        var event = new QOIEvents.FileWrite();
+        event.begin();
         var abs_path = res_folder + File.separator + path;
         try(var output = new FileOutputStream(abs_path)){
             output.write(content);
         }catch (IOException e){
             fail("An error occurred while trying to write to : \"%s\"%n", abs_path);
         }
+        event.end(abs_path, 0, 0, (byte) 0, content.length, content.length);
     }
 
     // ==================================================================================
@@ -1,6 +1,18 @@
 package cs107;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordingFile;
 
 /**
  * Main entry point of the program.
@@ -18,6 +30,9 @@ public final class Main {
      */
     private Main(){}
 
+    // Argument of the run of testStatistics with -Dcs107.statistics=true
+    private static final String STATISTICS_RUN = "--statistics";
+
     /**
      * Main entry point to the program
      * @param args (String[]) - Arguments passed to the program via the command line
@@ -39,6 +54,12 @@ public final class Main {
         your program
          */
 
+        // Only the test of the statistics, in the JVM started by testStatistics with the statistics enabled
+        if(args.length == 1 && args[0].equals(STATISTICS_RUN)){
+            assert testStatistics();
+            return;
+        }
+
         // ========== Test ArrayUtils ==========
         assert ArrayUtils.equals(new byte[]{}, new byte[]{});
         assert ArrayUtils.equals(new byte[][]{{}, {}}, new byte[][]{{}, {}});
@@ -51,6 +72,10 @@ public final class Main {
         assert testPartition();
         assert testImageToChannels();
         assert testChannelsToImage();
+        assert testImageToPixels();
+        assert testPixelsToImage();
+        assert testHashPacked();
+        assert testPixelsToBytes();
 
         // ========== Test QOIEncoder ==========
         assert testQoiHeader();
@@ -61,6 +86,15 @@ public final class Main {
         assert testQoiOpLuma();
         assert testQoiOpRun();
         assert testEncodeData();
+        assert testEncodeDataPacked();
+        assert testQoiFileNoAllocation();
+        assert testQoiWriter();
+        assert testQoiFileParallel();
+        assert testStatistics();
+        assert testEncodeEvent();
+        assert testCodecContexts();
+        assert testEncodeCache();
+        assert testEncodeCacheFolder();
 
         // ========== Test QOIDecoder ==========
         assert testDecodeHeader();
@@ -70,6 +104,29 @@ public final class Main {
         assert testDecodeQoiOpLuma();
         assert testDecodeQoiOpRun();
         assert testDecodeData();
+        assert testDecodeDataPacked();
+        assert testDecodeDataRGBA();
+        assert testDecodeDataResume();
+        assert testQoiReader();
+        assert testDecodeQoiFileBuffer();
+        assert testRestartIndex();
+        assert testReencode();
+        assert testDecodeRegion();
+        assert testDecodeThumbnail();
+        assert testDecodeDirect();
+        assert testProbe();
+        assert testInventory();
+        assert testDecodeCache();
+
+        // ========== Test QOIP container ==========
+        assert testQoipFile();
+        assert testQoizStream();
+
+        // ========== Test QOIBatch ==========
+        assert testBatch();
+
+        // ========== Test QOIPipeline ==========
+        assert testPipeline();
 
         // ============= Test QOI ============== 
         String in = "beach";
@@ -104,8 +161,8 @@ public final class Main {
      * @param outputFile (String) - The path where to store the generated "PNG" Image
      */
     public static void qoiToPng(String inputFile, String outputFile){
-        // Read in binary mode the file 'input_file'
-        var inputFileContent = Helper.read(inputFile);
+        // Map in memory the file 'input_file'
+        var inputFileContent = Helper.map(inputFile);
         // Decode the file using the 'QOI' decoder
         var computedImage = QOIDecoder.decodeQoiFile(inputFileContent);
         // Write an image to 'output_file'
@@ -211,6 +268,45 @@ public final class Main {
         return Arrays.deepEquals(output, input);
     }
 
+    @SuppressWarnings("unused")
+    private static boolean testImageToPixels(){
+        int[] output = ArrayUtils.imageToPixels(input);
+        int[] expected = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15};
+        return Arrays.equals(output, expected);
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testPixelsToImage(){
+        int[] pixels = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15};
+        int[][] output = ArrayUtils.pixelsToImage(pixels, 3, 5);
+        return Arrays.deepEquals(output, input);
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testHashPacked(){
+        byte[] pixel = {-18, -20, -18, -1};
+        int packed = 0xFF_EE_EC_EE;
+        return QOISpecification.hash(packed) == QOISpecification.hash(pixel);
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testPixelsToBytes(){
+        int[] pixels = {0x80_11_22_33, 0xFF_44_55_66, 0x00_77_88_99};
+        byte[] rgb = {0x11, 0x22, 0x33, 0x44, 0x55, 0x66, 0x77, -120, -103};
+        byte[] toRGBA = new byte[13];
+        byte[] toRGB = new byte[9];
+        int[] fromRGBA = new int[3];
+        int[] fromRGB = new int[3];
+        return ArrayUtils.pixelsToBytes(pixels, 0, 3, QOISpecification.RGBA, toRGBA, 1) == 12
+                && ArrayUtils.pixelsToBytes(pixels, 0, 3, QOISpecification.RGB, toRGB, 0) == 9
+                && ArrayUtils.bytesToPixels(toRGBA, 1, QOISpecification.RGBA, fromRGBA, 0, 3) == 12
+                && ArrayUtils.bytesToPixels(rgb, 0, QOISpecification.RGB, fromRGB, 0, 3) == 9
+                && Arrays.equals(new byte[]{0, 0x11, 0x22, 0x33, -128, 0x44, 0x55, 0x66, -1, 0x77, -120, -103, 0}, toRGBA)
+                && Arrays.equals(rgb, toRGB)
+                && Arrays.equals(pixels, fromRGBA)
+                && Arrays.equals(new int[]{0xFF_11_22_33, 0xFF_44_55_66, 0xFF_77_88_99}, fromRGB);
+    }
+
     // ============================================================================================
     // ============================== QOIEncoder examples =========================================
     // ============================================================================================
@@ -279,6 +375,399 @@ public final class Main {
         return Arrays.equals(expected, encoding);
     }
 
+    // Same pixels as in testEncodeData, packed as ARGB
+    private static final int[] packedPixels = {0xFF_00_00_00, 0xFF_00_00_00, 0xFF_00_00_00, 0xFF_00_FF_00, 0xFF_EE_EC_EE, 0xFF_00_00_00, 0xFF_64_64_64, 0x5A_5A_5A_5A};
+
+    @SuppressWarnings("unused")
+    private static boolean testEncodeDataPacked(){
+        byte[] expected = {-62, 102, -115, -103, -76, 102, -2, 100, 100, 100, -1, 90, 90, 90, 90};
+        byte[] encoding = QOIEncoder.encodeData(packedPixels);
+        return Arrays.equals(expected, encoding);
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testQoiFileNoAllocation(){
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        // 256x256 image mixing runs, small differences and random pixels
+        int[][] data = new int[256][256];
+        for(int i=0 ; i<data.length ; ++i){
+            for(int j=0 ; j<data[i].length ; ++j){
+                data[i][j] = j < 64 ? 0xFF_00_00_00 : j < 128 ? 0xFF_00_00_00 | (i+j) : (i*31 + j*17) * 0x01_01_01_01;
+            }
+        }
+        Helper.Image image = Helper.generateImage(data, QOISpecification.RGBA, QOISpecification.sRGB);
+        byte[] output = new byte[QOIEncoder.maxFileSize(256, 256)];
+        byte[] expected = QOIEncoder.qoiFile(image);
+
+        // Calibrate the cost of the measure itself
+        long start = threads.getThreadAllocatedBytes(thread);
+        long overhead = threads.getThreadAllocatedBytes(thread) - start;
+
+        start = threads.getThreadAllocatedBytes(thread);
+        int size = QOIEncoder.qoiFile(image, output);
+        long allocated = threads.getThreadAllocatedBytes(thread) - start - overhead;
+
+        // Only the running state may be allocated, never a buffer per pixel
+        return allocated < 1024 && Arrays.equals(expected, Arrays.copyOf(output, size));
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testCodecContexts(){
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long thread = Thread.currentThread().getId();
+
+        int[][] data = new int[64][64];
+        for(int i=0 ; i<data.length ; ++i){
+            for(int j=0 ; j<data[i].length ; ++j){
+                data[i][j] = j < 16 ? 0xFF_00_00_00 : (i*31 + j*17) * 0x01_01_01_01;
+            }
+        }
+        Helper.Image image = Helper.generateImage(data, QOISpecification.RGBA, QOISpecification.sRGB);
+        byte[] expected = QOIEncoder.qoiFile(image, 2);
+        var encoder = new QOIEncoderContext();
+        var decoder = new QOIDecoderContext();
+
+        // Warm the buffers, then a second image must not allocate
+        boolean equals = true;
+        for(int i=0 ; i<2 ; ++i){
+            int size = encoder.qoiFile(image);
+            equals &= Arrays.equals(expected, Arrays.copyOf(encoder.output(), size));
+            int count = decoder.decodeQoiFile(expected);
+            equals &= count == 64 * 64 && Arrays.equals(ArrayUtils.imageToPixels(data), Arrays.copyOf(decoder.pixels(), count));
+        }
+
+        long start = threads.getThreadAllocatedBytes(thread);
+        long overhead = threads.getThreadAllocatedBytes(thread) - start;
+        start = threads.getThreadAllocatedBytes(thread);
+        encoder.qoiFile(image);
+        decoder.decodeQoiFile(expected);
+        long allocated = threads.getThreadAllocatedBytes(thread) - start - overhead;
+
+        // The static methods use the context of the thread, which does not keep the buffers of a large image
+        Helper.Image decoded = QOIDecoder.decodeQoiFile(expected);
+        Helper.Image large = Helper.generateImage(new int[1024][1024], QOISpecification.RGBA, QOISpecification.sRGB);
+        QOIEncoder.qoiFile(large);
+        return equals && allocated < 256
+                && Arrays.equals(expected, QOIEncoder.qoiFile(image))
+                && Arrays.deepEquals(data, decoded.data()) && decoded.channels() == QOISpecification.RGBA
+                && decoder.width() == 64 && decoder.height() == 64
+                && QOIEncoderContext.current().output().length <= QOIEncoderContext.POOLED_LIMIT;
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testEncodeCache(){
+        int[][] data = new int[32][32];
+        for(int i=0 ; i<data.length ; ++i){
+            for(int j=0 ; j<data[i].length ; ++j){
+                data[i][j] = (i*31 + j*17) * 0x01_01_01_01;
+            }
+        }
+        Helper.Image image = Helper.generateImage(data, QOISpecification.RGBA, QOISpecification.sRGB);
+        Helper.Image linear = Helper.generateImage(data, QOISpecification.RGBA, QOISpecification.ALL);
+        int[][] other = Arrays.stream(data).map(int[]::clone).toArray(int[][]::new);
+        other[31][31] ^= 1;
+        Helper.Image changed = Helper.generateImage(other, QOISpecification.RGBA, QOISpecification.sRGB);
+        byte[] expected = QOIEncoder.qoiFile(image);
+
+        // Room for only one of the files : the second one evicts the first
+        var cache = new QOIEncodeCache(expected.length + expected.length / 2);
+        byte[] first = cache.qoiFile(image);
+        byte[] hit = cache.qoiFile(image);
+        cache.qoiFile(changed);
+        byte[] evicted = cache.qoiFile(image);
+
+        return QOIEncodeCache.hash(image) != QOIEncodeCache.hash(linear)
+                && QOIEncodeCache.hash(image) != QOIEncodeCache.hash(changed)
+                && Arrays.equals(expected, first) && first == hit && Arrays.equals(expected, evicted)
+                && cache.hits() == 1 && cache.misses() == 3 && cache.evictions() == 2
+                && cache.bytes() == expected.length;
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testEncodeCacheFolder(){
+        int[][] data = new int[16][16];
+        for(int i=0 ; i<data.length ; ++i){
+            for(int j=0 ; j<data[i].length ; ++j){
+                data[i][j] = (i*13 + j*7) * 0x01_01_01_01;
+            }
+        }
+        Helper.Image image = Helper.generateImage(data, QOISpecification.RGBA, QOISpecification.sRGB);
+        byte[] expected = QOIEncoder.qoiFile(image);
+        var folder = Path.of("res", "cache");
+        var file = folder.resolve(String.format("%016x.qoi", QOIEncodeCache.hash(image)));
+        try{
+            if(!deleteFolder(folder)){
+                return false;
+            }
+            // A first cache writes the file, a second one (as a new process would) reads it
+            new QOIEncodeCache(1 << 20, "cache").qoiFile(image);
+            var reader = new QOIEncodeCache(1 << 20, "cache");
+            byte[] read = reader.qoiFile(image);
+
+            // A file cut short is not used : the image is encoded and written again
+            Files.write(file, Arrays.copyOf(expected, expected.length - 1));
+            var truncated = new QOIEncodeCache(1 << 20, "cache");
+            byte[] encoded = truncated.qoiFile(image);
+
+            boolean temporary;
+            try(var files = Files.list(folder)){
+                temporary = files.anyMatch(path -> path.toString().endsWith(".tmp"));
+            }
+            boolean equals = Arrays.equals(expected, read) && reader.diskHits() == 1 && reader.misses() == 0
+                    && Arrays.equals(expected, encoded) && truncated.diskHits() == 0 && truncated.misses() == 1
+                    && Arrays.equals(expected, Files.readAllBytes(file)) && !temporary;
+            return deleteFolder(folder) && equals;
+        }catch (IOException e){
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testQoiWriter(){
+        byte[] expected = {113, 111, 105, 102, 0, 0, 0, 4, 0, 0, 0, 2, 4, 0,
+                -62, 102, -115, -103, -76, 102, -2, 100, 100, 100, -1, 90, 90, 90, 90,
+                0, 0, 0, 0, 0, 0, 0, 1};
+        var output = new ByteArrayOutputStream();
+        try(var writer = new QOIWriter(output, 4, 2, QOISpecification.RGBA, QOISpecification.sRGB)){
+            // The first chunk stops in the middle of a run
+            writer.write(packedPixels, 0, 2);
+            writer.write(packedPixels, 2, 6);
+        }catch (IOException e){
+            return false;
+        }
+        return Arrays.equals(expected, output.toByteArray());
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testQoiFileParallel(){
+        // Runs longer than 62 pixels, crossing the bounds of the segments, and colors coming back
+        int[][] data = new int[40][50];
+        for(int i=0 ; i<data.length ; ++i){
+            for(int j=0 ; j<data[i].length ; ++j){
+                data[i][j] = i < 4 ? 0xFF_00_00_00 : i % 7 == 0 ? 0xFF_12_34_56 : 0xFF_00_00_00 | (i*j % 23) * 0x01_03_05;
+            }
+        }
+        Helper.Image image = Helper.generateImage(data, QOISpecification.RGBA, QOISpecification.sRGB);
+        byte[] expected = QOIEncoder.qoiFile(image);
+        for(int segments : new int[]{1, 2, 3, 7, 64, 2000}){
+            if(!Arrays.equals(expected, QOIEncoder.qoiFile(image, segments))){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testStatistics(){
+        var before = QOIStatistics.snapshot().toMap();
+        byte[] encoded = QOIEncoder.encodeData(packedPixels);
+        QOIDecoder.decodeData(encoded, new int[packedPixels.length]);
+        var after = QOIStatistics.snapshot().toMap();
+        if(!QOIStatistics.ENABLED){
+            // Nothing is recorded here, the hooks are checked again in a JVM where they are enabled
+            return before.equals(after) && after.values().stream().allMatch(value -> value == 0)
+                    && runWithStatistics();
+        }
+        // One run of 3 pixels, then DIFF, LUMA, LUMA, RGB and RGBA
+        long[] chunks = {1, 1, 0, 1, 2, 1};
+        for(int i=0 ; i<chunks.length ; ++i){
+            for(String side : new String[]{"encode.", "decode."}){
+                String key = side + QOIStatistics.CHUNKS[i];
+                if(after.get(key) - before.get(key) != chunks[i]){
+                    return false;
+                }
+            }
+        }
+        return after.get("encode.run.3") - before.getOrDefault("encode.run.3", 0L) == 1
+                && after.get("decode.run.3") - before.getOrDefault("decode.run.3", 0L) == 1
+                && testIndexLookups() && testRetiredStatistics();
+    }
+
+    /**
+     * Check that a slot holding the pixel 0 is a collision for another pixel, not an empty slot
+     * @return (boolean) - true if the lookups are counted right
+     */
+    private static boolean testIndexLookups(){
+        // 0x00_00_00_00 and 0x40_00_00_00 both hash to 0, 0xFF_01_00_00 hashes to 56
+        var before = QOIStatistics.snapshot().toMap();
+        QOIEncoder.encodeData(new int[]{0x00_00_00_00, 0x40_00_00_00, 0xFF_01_00_00});
+        var after = QOIStatistics.snapshot().toMap();
+        return after.get("index.hits") - before.get("index.hits") == 1
+                && after.get("index.collisions") - before.get("index.collisions") == 1
+                && after.get("index.misses") - before.get("index.misses") == 1;
+    }
+
+    /**
+     * Check that the statistics of a thread are kept once the thread ends, but not its instance
+     * @return (boolean) - true if the statistics of the thread are folded in the shared total
+     */
+    private static boolean testRetiredStatistics(){
+        var before = QOIStatistics.snapshot().toMap();
+        var thread = new Thread(() -> QOIEncoder.encodeData(packedPixels));
+        thread.start();
+        try{
+            thread.join();
+            int live = QOIStatistics.live();
+            thread = null;
+            // The instance is folded once the thread is collected
+            for(int i=0 ; i<100 && QOIStatistics.live() >= live ; ++i){
+                System.gc();
+                Thread.sleep(20);
+            }
+            var after = QOIStatistics.snapshot().toMap();
+            return QOIStatistics.live() < live && after.get("encode.DIFF") - before.get("encode.DIFF") == 1;
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Run testStatistics in a new JVM, with the assertions and the statistics enabled
+     * @return (boolean) - true if the test passes in this JVM
+     */
+    private static boolean runWithStatistics(){
+        var java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        var process = new ProcessBuilder(java, "-ea", "-Dcs107.statistics=true",
+                "-cp", System.getProperty("java.class.path"), Main.class.getName(), STATISTICS_RUN).inheritIO();
+        try{
+            return process.start().waitFor() == 0;
+        }catch (IOException e){
+            return false;
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testEncodeEvent(){
+        Helper.Image image = Helper.generateImage(new int[3][5], QOISpecification.RGBA, QOISpecification.sRGB);
+        try(var recording = new Recording()){
+            recording.enable("cs107.Encode");
+            recording.start();
+            int size = QOIEncoder.qoiFile(image).length;
+            recording.stop();
+
+            var dump = Files.createTempFile("events", ".jfr");
+            try{
+                recording.dump(dump);
+                var events = RecordingFile.readAllEvents(dump);
+                return events.size() == 1 && events.get(0).getInt("width") == 5 && events.get(0).getInt("height") == 3
+                        && events.get(0).getLong("inputBytes") == 60 && events.get(0).getLong("outputBytes") == size;
+            }finally{
+                Files.delete(dump);
+            }
+        }catch (IOException e){
+            return false;
+        }
+    }
+
+    // ============================================================================================
+    // ============================== QOIP container examples =====================================
+    // ============================================================================================
+
+    @SuppressWarnings("unused")
+    private static boolean testQoipFile(){
+        int[][] data = new int[37][5];
+        for(int i=0 ; i<data.length ; ++i){
+            for(int j=0 ; j<data[i].length ; ++j){
+                data[i][j] = 0xFF_00_00_00 | (i / 3) << 8 | j;
+            }
+        }
+        Helper.Image image = Helper.generateImage(data, QOISpecification.RGBA, QOISpecification.sRGB);
+        byte[] container = QOIPEncoder.qoipFile(image, 16);
+        // The last strip is a plain "Quite Ok Image" of the 5 last rows
+        Helper.Image last = QOIDecoder.decodeQoiFile(QOIPDecoder.strip(container, 2));
+        return image.equals(QOIPDecoder.decodeQoipFile(container))
+                && Arrays.deepEquals(last.data(), Arrays.copyOfRange(data, 32, 37));
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testQoizStream(){
+        Helper.Image image = Helper.readImage("references/dice.png");
+        int[] pixels = ArrayUtils.imageToPixels(image.data());
+        int width = image.data()[0].length;
+        byte[] expected = QOIEncoder.qoiFile(image);
+        try{
+            // Small chunks so that the rows and the chunks are not aligned
+            var container = new ByteArrayOutputStream();
+            try(var writer = new QOIWriter(new QOIZOutputStream(container, 1000, 6), width, image.data().length, image.channels(), image.color_space())){
+                for(int i=0 ; i<pixels.length ; i += width){
+                    writer.write(pixels, i, width);
+                }
+            }
+            byte[] bytes = container.toByteArray();
+            byte[] decompressed = new QOIZInputStream(new ByteArrayInputStream(bytes)).readAllBytes();
+
+            int[] decoded = new int[pixels.length];
+            try(var reader = new QOIReader(new QOIZInputStream(new ByteArrayInputStream(bytes)))){
+                for(int i=0 ; i<decoded.length ; i += width){
+                    System.arraycopy(reader.nextRow(), 0, decoded, i, width);
+                }
+            }
+            return bytes.length < expected.length && Arrays.equals(expected, decompressed) && Arrays.equals(pixels, decoded)
+                    && rejectsChunkSize(-1) && rejectsChunkSize(QOISpecification.QOIZ_MAX_CHUNK_SIZE + 1);
+        }catch (IOException e){
+            return false;
+        }
+    }
+
+    /**
+     * Check that a container with the given chunk size is rejected before any allocation
+     * @param chunkSize (int) - Chunk size written in the container header
+     * @return (boolean) - true if the container header is rejected with an IOException
+     */
+    private static boolean rejectsChunkSize(int chunkSize){
+        byte[] header = Arrays.copyOf(QOISpecification.QOIZ_MAGIC, QOISpecification.QOIZ_HEADER_SIZE);
+        ByteBuffer.wrap(header).putInt(QOISpecification.QOIZ_MAGIC.length, chunkSize);
+        try{
+            new QOIZInputStream(new ByteArrayInputStream(header)).close();
+            return false;
+        }catch (IOException e){
+            return true;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testBatch(){
+        String[] names = {"qoi_op_diff", "qoi_op_index", "qoi_op_luma", "qoi_op_rgb", "qoi_op_rgba", "qoi_op_run"};
+        var folder = Path.of("res", "batch");
+        try{
+            if(!deleteFolder(folder)){
+                return false;
+            }
+            var encoded = QOIBatch.convert(true, "references", "batch/qoi", List.of("qoi_op_*.png"), 2, 1 << 20);
+            // A file that is not a "Quite Ok Image" fails alone, without stopping the others
+            Files.write(folder.resolve("qoi").resolve("broken.qoi"), new byte[]{1, 2, 3});
+            var decoded = QOIBatch.convert(false, "res/batch/qoi", "batch/png", List.of("*.qoi"), 2, 1 << 20);
+
+            // The results follow the order of the files
+            boolean equals = encoded.size() == names.length && decoded.size() == names.length + 1
+                    && decoded.get(0).file().equals("broken.qoi") && decoded.get(0).failure() != null;
+            for(int i=0 ; equals && i<names.length ; ++i){
+                var png = Path.of("references", names[i] + ".png");
+                var qoi = Path.of("references", names[i] + ".qoi");
+                int[][] image = Helper.readImage(png.toString()).data();
+                long pixels = (long) image.length * image[0].length;
+                var encode = encoded.get(i);
+                var decode = decoded.get(i + 1);
+                equals = encode.file().equals(names[i] + ".png") && encode.failure() == null
+                        && encode.pixels() == pixels && encode.png() == Files.size(png) && encode.qoi() == Files.size(qoi)
+                        && Arrays.equals(Files.readAllBytes(qoi), Files.readAllBytes(folder.resolve("qoi").resolve(names[i] + ".qoi")))
+                        && decode.file().equals(names[i] + ".qoi") && decode.failure() == null
+                        && decode.pixels() == pixels && decode.qoi() == Files.size(qoi)
+                        && decode.png() == Files.size(folder.resolve("png").resolve(names[i] + ".png"))
+                        && Arrays.deepEquals(image, Helper.readImage(folder.resolve("png").resolve(names[i] + ".png").toString()).data());
+            }
+            return deleteFolder(folder) && equals;
+        }catch (IOException e){
+            return false;
+        }
+    }
+
     // ============================================================================================
     // ============================== QOIDecoder examples =========================================
     // ============================================================================================
@@ -350,4 +839,305 @@ public final class Main {
         return Arrays.deepEquals(expected, QOIDecoder.decodeData(encoding, 4, 2));
     }
 
-}
\ No newline at end of file
+    @SuppressWarnings("unused")
+    private static boolean testDecodeDataPacked(){
+        byte[] encoding = {-62, 102, -115, -103, -76, 102, -2, 100, 100, 100, -1, 90, 90, 90, 90};
+        return Arrays.equals(packedPixels, QOIDecoder.decodeData(encoding, new int[8]));
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testDecodeDataRGBA(){
+        byte[] input = {7, 7, -62, 102, -115, -103, -76, 102, -2, 100, 100, 100, -1, 90, 90, 90, 90};
+        byte[] expected = {0,0,0,-1, 0,0,0,-1, 0,0,0,-1, 0,-1,0,-1, -18,-20,-18,-1, 0,0,0,-1, 100,100,100,-1, 90,90,90,90};
+        byte[] buffer = new byte[8 * 4];
+        int consumed = QOIDecoder.decodeData(input, 2, buffer);
+        return Arrays.equals(expected, buffer) && (consumed == 15);
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testDecodeDataResume(){
+        byte[] encoding = {-62, 102, -115, -103, -76, 102, -2, 100, 100, 100, -1, 90, 90, 90, 90};
+        int[] buffer = new int[8];
+        int[] state = QOISpecification.initialState();
+        // Stop in the middle of the first run, the rest of the run is kept in the state
+        int consumed = QOIDecoder.decodeData(encoding, 0, state, buffer, 0, 2);
+        boolean pending = state[QOISpecification.STATE_RUN] == 1;
+        consumed += QOIDecoder.decodeData(encoding, consumed, state, buffer, 2, 8);
+        return pending && Arrays.equals(packedPixels, buffer) && (consumed == encoding.length);
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testQoiReader(){
+        // Image of 2x4 pixels, the first run spans the two first rows
+        byte[] file = {113, 111, 105, 102, 0, 0, 0, 2, 0, 0, 0, 4, 4, 0,
+                -62, 102, -115, -103, -76, 102, -2, 100, 100, 100, -1, 90, 90, 90, 90,
+                0, 0, 0, 0, 0, 0, 0, 1};
+        int[] pixels = new int[8];
+        try(var reader = new QOIReader(new ByteArrayInputStream(file))){
+            for(int[] row = reader.nextRow() ; row != null ; row = reader.nextRow()){
+                System.arraycopy(row, 0, pixels, (reader.rows() - 1) * reader.width(), row.length);
+            }
+            return reader.rows() == 4 && Arrays.equals(packedPixels, pixels);
+        }catch (IOException e){
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testDecodeQoiFileBuffer(){
+        byte[] file = {113, 111, 105, 102, 0, 0, 0, 4, 0, 0, 0, 2, 4, 0,
+                -62, 102, -115, -103, -76, 102, -2, 100, 100, 100, -1, 90, 90, 90, 90,
+                0, 0, 0, 0, 0, 0, 0, 1};
+        var buffer = ByteBuffer.wrap(file);
+        Helper.Image image = QOIDecoder.decodeQoiFile(buffer);
+        return image.equals(QOIDecoder.decodeQoiFile(file)) && (buffer.position() == 0);
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testRestartIndex(){
+        byte[] file = {113, 111, 105, 102, 0, 0, 0, 4, 0, 0, 0, 2, 4, 0,
+                -62, 102, -115, -103, -76, 102, -2, 100, 100, 100, -1, 90, 90, 90, 90,
+                0, 0, 0, 0, 0, 0, 0, 1};
+        // With 2 pixels between the points, the first run spans two segments
+        byte[] sidecar = QOIRestartIndex.build(file, 2);
+        return QOIRestartIndex.decodeQoiFile(file, sidecar).equals(QOIDecoder.decodeQoiFile(file));
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testReencode(){
+        // 64x64 image mixing runs and noise, with a restart point every 4 rows
+        int[][] data = new int[64][64];
+        for(int i=0 ; i<data.length ; ++i){
+            for(int j=0 ; j<data[i].length ; ++j){
+                data[i][j] = j < 20 ? 0xFF_00_00_00 : (i*31 + j*17) * 0x01_01_01_01;
+            }
+        }
+        byte[] content = QOIEncoder.qoiFile(Helper.generateImage(data, QOISpecification.RGBA, QOISpecification.sRGB));
+        byte[] sidecar = QOIRestartIndex.build(content, 256);
+
+        boolean ok = true;
+        // A stroke in the middle, one at the first pixel and one at the last pixel
+        int[][] windows = {{30, 20, 5, 3}, {0, 0, 2, 1}, {60, 62, 4, 2}};
+        for(int[] window : windows){
+            int[][] edited = Arrays.stream(data).map(int[]::clone).toArray(int[][]::new);
+            for(int i=window[1] ; i<window[1] + window[3] ; ++i){
+                for(int j=window[0] ; j<window[0] + window[2] ; ++j){
+                    edited[i][j] = 0xFF_12_34_56 + i;
+                }
+            }
+            var image = Helper.generateImage(edited, QOISpecification.RGBA, QOISpecification.sRGB);
+            var update = QOIRestartIndex.reencode(content, sidecar, image, window[0], window[1], window[2], window[3]);
+            ok &= Arrays.deepEquals(edited, QOIDecoder.decodeQoiFile(update.content()).data())
+                    && Arrays.equals(update.sidecar(), QOIRestartIndex.build(update.content(), 256));
+        }
+
+        // Noise over all the runs : the new file is much larger than the previous one
+        int[][] noisy = Arrays.stream(data).map(int[]::clone).toArray(int[][]::new);
+        for(int i=0 ; i<noisy.length ; ++i){
+            for(int j=0 ; j<20 ; ++j){
+                noisy[i][j] = 0xFF_00_00_00 | (i * 64 + j) * 0x9E_37_79_B1 >>> 8;
+            }
+        }
+        var grown = QOIRestartIndex.reencode(content, sidecar,
+                Helper.generateImage(noisy, QOISpecification.RGBA, QOISpecification.sRGB), 0, 0, 20, 64);
+        ok &= grown.content().length > content.length + 256 * 5 + 1
+                && Arrays.deepEquals(noisy, QOIDecoder.decodeQoiFile(grown.content()).data())
+                && Arrays.equals(grown.sidecar(), QOIRestartIndex.build(grown.content(), 256));
+
+        // The chunks after the stroke are the ones of the previous file
+        int[][] edited = Arrays.stream(data).map(int[]::clone).toArray(int[][]::new);
+        edited[20][30] = 0xFF_12_34_56;
+        var update = QOIRestartIndex.reencode(content, sidecar,
+                Helper.generateImage(edited, QOISpecification.RGBA, QOISpecification.sRGB), 30, 20, 1, 1);
+        int tail = content.length / 2;
+        return ok && Arrays.equals(content, content.length - tail, content.length,
+                update.content(), update.content().length - tail, update.content().length);
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testDecodeRegion(){
+        // Runs crossing the rows and the borders of the windows
+        int[][] data = new int[30][70];
+        for(int i=0 ; i<data.length ; ++i){
+            for(int j=0 ; j<data[i].length ; ++j){
+                data[i][j] = i % 4 == 0 ? 0xFF_00_00_00 : 0xFF_00_00_00 | (i*j % 19) * 0x01_03_05;
+            }
+        }
+        byte[] content = QOIEncoder.qoiFile(Helper.generateImage(data, QOISpecification.RGBA, QOISpecification.sRGB));
+        int[][] windows = {{0, 0, 70, 30}, {0, 0, 1, 1}, {69, 29, 1, 1}, {10, 3, 25, 9}, {0, 4, 70, 1}, {65, 0, 5, 30}};
+        for(int[] w : windows){
+            int[][] expected = new int[w[3]][];
+            for(int i=0 ; i<w[3] ; ++i){
+                expected[i] = Arrays.copyOfRange(data[w[1] + i], w[0], w[0] + w[2]);
+            }
+            Helper.Image region = QOIDecoder.decodeRegion(content, w[0], w[1], w[2], w[3]);
+            Helper.Image mapped = QOIDecoder.decodeRegion(ByteBuffer.wrap(content), w[0], w[1], w[2], w[3]);
+            if(!Arrays.deepEquals(expected, region.data()) || !region.equals(mapped)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testDecodeThumbnail(){
+        // 5x3 image : the last column and the last row are smaller blocks
+        int[][] data = {
+                {0xFF_00_00_00, 0xFF_00_00_04, 0xFF_10_20_30, 0xFF_10_20_30, 0x00_FF_FF_FF},
+                {0xFF_00_00_00, 0xFF_00_00_04, 0xFF_10_20_30, 0xFF_10_20_30, 0x00_FF_FF_FF},
+                {0x80_00_00_00, 0x80_00_00_00, 0xFF_00_00_00, 0xFF_00_00_00, 0x10_FF_FF_FF}
+        };
+        byte[] content = QOIEncoder.qoiFile(Helper.generateImage(data, QOISpecification.RGBA, QOISpecification.sRGB));
+        int[][] filtered = {{0xFF_00_00_02, 0xFF_10_20_30, 0x00_FF_FF_FF}, {0x80_00_00_00, 0xFF_00_00_00, 0x10_FF_FF_FF}};
+        int[][] sampled = {{0xFF_00_00_00, 0xFF_10_20_30, 0x00_FF_FF_FF}, {0x80_00_00_00, 0xFF_00_00_00, 0x10_FF_FF_FF}};
+        return Arrays.deepEquals(filtered, QOIDecoder.decodeThumbnail(content, 2, true).data())
+                && Arrays.deepEquals(sampled, QOIDecoder.decodeThumbnail(content, 2, false).data())
+                && Arrays.deepEquals(data, QOIDecoder.decodeThumbnail(content, 1, true).data())
+                && Arrays.deepEquals(new int[][]{{0xFF_00_00_00}}, QOIDecoder.decodeThumbnail(content, 8, false).data());
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testDecodeDirect(){
+        int[][] data = {{0x11_22_33_44, 0x55_66_77_88}, {0xFF_00_00_00, 0xFF_00_00_00}};
+        byte[] content = QOIEncoder.qoiFile(Helper.generateImage(data, QOISpecification.RGBA, QOISpecification.sRGB));
+
+        // 2 bytes of padding at the end of each row must be left as is
+        var rgba = ByteBuffer.allocateDirect(2 + 2 * 10).order(ByteOrder.LITTLE_ENDIAN);
+        rgba.put(0, (byte) -1).put(10, (byte) -1).put(11, (byte) -1);
+        int[] header = QOIDecoder.decodeQoiFile(content, rgba, 2, QOIDecoder.Layout.RGBA, 10);
+        byte[] expected = {-1, 0, 0x22, 0x33, 0x44, 0x11, 0x66, 0x77, -0x78, 0x55, -1, -1, 0, 0, 0, -1, 0, 0, 0, -1, 0, 0};
+        byte[] actual = new byte[expected.length];
+        rgba.get(0, actual);
+
+        var bgra = ByteBuffer.allocateDirect(16);
+        QOIDecoder.decodeQoiFile(ByteBuffer.wrap(content), bgra, 0, QOIDecoder.Layout.BGRA, 8);
+        var argb = ByteBuffer.allocate(16);
+        QOIDecoder.decodeQoiFile(content, argb, 0, QOIDecoder.Layout.ARGB, 8);
+
+        return header[0] == 2 && header[1] == 2 && Arrays.equals(expected, actual)
+                && bgra.getInt(0) == 0x44_33_22_11 && bgra.getInt(12) == 0x00_00_00_FF
+                && argb.getInt(4) == 0x55_66_77_88 && argb.getInt(8) == 0xFF_00_00_00;
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testProbe(){
+        var qoi = Path.of("references", "dice.qoi");
+        byte[] content = Helper.read(qoi.toString());
+        int[] header = QOIDecoder.decodeHeader(Arrays.copyOf(content, QOISpecification.HEADER_SIZE));
+        var entry = QOIInventory.probe(qoi);
+        return entry != null && entry.width() == header[0] && entry.height() == header[1]
+                && entry.channels() == header[2] && entry.colorSpace() == header[3] && entry.size() == content.length
+                && QOIInventory.probe(Path.of("references", "dice.png")) == null
+                && QOIInventory.probe(Path.of("references", "missing.qoi")) == null;
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testInventory(){
+        var root = Path.of("references");
+        try(var files = Files.list(root)){
+            // The "PNG" files and the dumps match the pattern but are not "Quite Ok Image" files
+            List<Path> expected = files.filter(path -> path.getFileName().toString().matches("qoi_op_.*\\.qoi"))
+                    .sorted().toList();
+            List<Path> actual = QOIInventory.inventory(root, "qoi_op_*", 2).stream()
+                    .map(QOIInventory.Entry::path).toList();
+
+            // A valid header of an image without columns is left out as well
+            byte[] empty = Arrays.copyOf(Helper.read("references/dice.qoi"), QOISpecification.HEADER_SIZE);
+            Arrays.fill(empty, 4, 8, (byte) 0);
+            var file = Files.createTempFile("empty", ".qoi");
+            try{
+                Files.write(file, empty);
+                return expected.size() == 6 && expected.equals(actual) && QOIInventory.probe(file) == null;
+            }finally{
+                Files.delete(file);
+            }
+        }catch (IOException e){
+            return false;
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testDecodeCache(){
+        byte[] content = Helper.read("references/dice.qoi");
+        int[][] expected = QOIDecoder.decodeQoiFile(content).data();
+        // Room for one image of the size of "dice"
+        var cache = new QOIDecodeCache(4L * expected.length * expected[0].length * 3 / 2);
+
+        // Threads asking for the same content at the same time decode it only once
+        var threads = new Thread[4];
+        var images = new Helper.Image[threads.length];
+        for(int i=0 ; i<threads.length ; ++i){
+            int index = i;
+            threads[i] = new Thread(() -> images[index] = cache.decodeQoiFile(content));
+            threads[i].start();
+        }
+        try{
+            for(var thread : threads){
+                thread.join();
+            }
+        }catch (InterruptedException e){
+            return false;
+        }
+        boolean shared = true;
+        for(var image : images){
+            shared &= image == images[0];
+        }
+
+        // The file and the content have different keys : the file evicts the content
+        var file = cache.decodeQoiFile("references/dice.qoi");
+        var again = cache.decodeQoiFile("references/dice.qoi");
+
+        return shared && Arrays.deepEquals(expected, images[0].data()) && Arrays.deepEquals(expected, file.data())
+                && file == again && cache.misses() == 2 && cache.hits() + cache.coalesced() == threads.length
+                && cache.evictions() == 1 && cache.bytes() == 4L * expected.length * expected[0].length
+                && QOIDecodeCache.hash(content) != QOIDecodeCache.hash(Arrays.copyOf(content, content.length - 1));
+    }
+
+    @SuppressWarnings("unused")
+    private static boolean testPipeline(){
+        String[] names = {"qoi_op_diff", "qoi_op_index", "qoi_op_luma", "qoi_op_rgb", "qoi_op_rgba", "qoi_op_run"};
+        var folder = Path.of("res", "pipeline");
+        if(!deleteFolder(folder)){
+            return false;
+        }
+        // One image at a time between two stages, so that the stages keep waiting for each other
+        var encoded = QOIPipeline.convert(true, "references", "pipeline/qoi", List.of("qoi_op_*.png"), 1, 2, 1, 1);
+        var decoded = QOIPipeline.convert(false, "res/pipeline/qoi", "pipeline/png", List.of("*.qoi"), 1, 2, 1, 1);
+
+        boolean equals = encoded.results().size() == names.length && decoded.results().size() == names.length;
+        for(var report : List.of(encoded, decoded)){
+            for(var result : report.results()){
+                equals &= result != null && result.failure() == null;
+            }
+            for(var stage : report.stages()){
+                equals &= stage.items() == names.length;
+            }
+        }
+        for(String name : names){
+            equals &= Arrays.equals(Helper.read("references/" + name + ".qoi"), Helper.read("res/pipeline/qoi/" + name + ".qoi"));
+            equals &= Arrays.deepEquals(Helper.readImage("references/" + name + ".png").data(),
+                    Helper.readImage("res/pipeline/png/" + name + ".png").data());
+        }
+        return deleteFolder(folder) && equals;
+    }
+
+    /**
+     * Delete a folder written by a test and all its content, if it exists
+     * @param folder (Path) - Folder to delete
+     * @return (boolean) - true if the folder no longer exists
+     */
+    private static boolean deleteFolder(Path folder){
+        if(!Files.exists(folder)){
+            return true;
+        }
+        try(var paths = Files.walk(folder)){
+            for(var path : paths.sorted(Comparator.reverseOrder()).toList()){
+                Files.delete(path);
+            }
+            return true;
+        }catch (IOException e){
+            return false;
+        }
+    }
+
+}
@@ -0,0 +1,299 @@
+package cs107;
+
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import javax.imageio.ImageIO;
+
+/**
+ * Batch converter between "PNG" and "Quite Ok Image" files, built on
+ * Main.pngToQoi and Main.qoiToPng. The files of the input folder matching the
+ * patterns are converted on a work-stealing pool sized to the cores.
+ * The number of pixels being converted at the same time is bounded : the size
+ * of each image is read from its header before it is scheduled, and a file only
+ * starts once the pixels of the files in flight leave room for it.
+ * @apiNote Usage : java cs107.QOIBatch (encode|decode) input_folder output_folder [glob ...]
+ * [-t threads] [-p max_megapixels]. The output folder is created in "res/" (See Helper.write)
+ * and keeps the sub-folders of the input folder. The patterns are matched against the
+ * paths relative to the input folder, by default "**.png" to encode and "**.qoi" to decode.
+ * With -Dcs107.statistics=true, the statistics of the codec are printed at the end (See QOIStatistics).
+ * @version 1.3
+ * @since 1.3
+ */
+public final class QOIBatch {
+
+    /**
+     * Approximate number of bytes held in memory per pixel during a conversion
+     * (decoded image, packed pixels, encoded file and "PNG" raster)
+     */
+    public static final int BYTES_PER_PIXEL = 24;
+
+    // Hide default constructor
+    private QOIBatch(){}
+
+    // ==================================================================================
+    // ================================== BATCH TOOL ====================================
+    // ==================================================================================
+
+    /**
+     * Main entry point of the batch converter
+     * @param args (String[]) - Arguments passed to the program via the command line
+     */
+    public static void main(String[] args){
+        var positional = new ArrayList<String>();
+        var threads = Runtime.getRuntime().availableProcessors();
+        var budget = Runtime.getRuntime().maxMemory() / 2 / BYTES_PER_PIXEL;
+        for(var i = 0; i < args.length; ++i){
+            switch (args[i]){
+                case "-t" -> threads = Integer.parseInt(args[++i]);
+                case "-p" -> budget = Long.parseLong(args[++i]) * 1_000_000;
+                default -> positional.add(args[i]);
+            }
+        }
+        if(positional.size() < 3 || !(positional.get(0).equals("encode") || positional.get(0).equals("decode"))){
+            System.err.println("Usage : java cs107.QOIBatch (encode|decode) input_folder output_folder [glob ...] [-t threads] [-p max_megapixels]");
+            return;
+        }
+
+        var encode = positional.get(0).equals("encode");
+        var patterns = positional.size() > 3 ? positional.subList(3, positional.size()) : List.of(encode ? "**.png" : "**.qoi");
+        var results = convert(encode, positional.get(1), positional.get(2), patterns, threads, budget);
+
+        long pixels = 0, png = 0, qoi = 0, nanos = 0;
+        var failed = 0;
+        for(var result : results){
+            if(result.failure() != null){
+                failed++;
+                continue;
+            }
+            pixels += result.pixels();
+            png += result.png();
+            qoi += result.qoi();
+            nanos = Math.max(nanos, result.end());
+        }
+        System.out.printf("%d files converted (%d failed), %d pixels in %.1f ms : %.1f MB/s, %.0f pixels/s, ratio %.1f%%%n",
+                results.size() - failed, failed, pixels, nanos / 1e6,
+                pixels * 4 * 1e3 / Math.max(nanos, 1), pixels * 1e9 / Math.max(nanos, 1),
+                qoi == 0 ? 0 : Main.ratio((int) Math.min(png, Integer.MAX_VALUE), (int) Math.min(qoi, Integer.MAX_VALUE)));
+        if(QOIStatistics.ENABLED)
+            System.out.print(QOIStatistics.snapshot().report());
+    }
+
+    // ==================================================================================
+    // ================================== BATCH API =====================================
+    // ==================================================================================
+
+    /**
+     * Result of the conversion of one file
+     * @param file (String) - Path of the file, relative to the input folder
+     * @param pixels (long) - Number of pixels of the image
+     * @param png (long) - Size of the "PNG" file
+     * @param qoi (long) - Size of the "QOI" file
+     * @param nanos (long) - Duration of the conversion
+     * @param end (long) - End of the conversion, since the start of the batch
+     * @param failure (String) - Reason of the failure, or null if the file was converted
+     */
+    public record Result(String file, long pixels, long png, long qoi, long nanos, long end, String failure){
+
+        /**
+         * @return (double) - Raw pixel data (4 bytes per pixel) converted per second, in MB
+         */
+        public double megabytesPerSecond(){
+            return pixels * 4 * 1e3 / nanos;
+        }
+
+        /**
+         * @return (double) - Ratio between the "PNG" and the "QOI" files (See Main.ratio)
+         */
+        public double ratio(){
+            return Main.ratio((int) png, (int) qoi);
+        }
+    }
+
+    /**
+     * Convert all the files of a folder matching the patterns, and print a line per file
+     * @param encode (boolean) - true to convert "PNG" files to "QOI", false for the opposite
+     * @param input (String) - Folder containing the files to convert
+     * @param output (String) - Folder, in "res/", where to write the converted files
+     * @param patterns (List) - Glob patterns of the files to convert, relative to the input folder
+     * @param threads (int) - Number of files converted at the same time
+     * @param budget (long) - Maximal number of pixels converted at the same time. A larger image
+     *                      is still converted, but alone
+     * @return (List) - The results, in the order of the files
+     * @throws AssertionError if one of the arguments is null, the number of threads
+     * or the budget is not positive
+     */
+    public static List<Result> convert(boolean encode, String input, String output, List<String> patterns, int threads, long budget){
+        assert input != null && output != null && patterns != null;
+        assert threads > 0 && budget > 0;
+
+        var root = Path.of(input);
+        var files = list(root, patterns);
+        var pool = Executors.newWorkStealingPool(threads);
+        var inFlight = new Budget(budget);
+        var start = System.nanoTime();
+
+        var tasks = new ArrayList<Future<Result>>(files.size());
+        try{
+            for(var file : files){
+                var name = root.relativize(file).toString();
+                long pixels;
+                try{
+                    pixels = encode ? pngPixels(file) : qoiPixels(file);
+                }catch (IOException | RuntimeException | AssertionError e){
+                    tasks.add(CompletableFuture.completedFuture(
+                            new Result(name, 0, 0, 0, 0, 0, "cannot read the header")));
+                    continue;
+                }
+                inFlight.acquire(pixels);
+                tasks.add(pool.submit(() -> {
+                    try{
+                        return convert(encode, file, name, output, pixels, start);
+                    }finally{
+                        inFlight.release(pixels);
+                    }
+                }));
+            }
+
+            var results = new ArrayList<Result>(tasks.size());
+            for(var task : tasks){
+                results.add(task.get());
+            }
+            return results;
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            return Helper.fail("The conversion of \"%s\" was interrupted%n", input);
+        }catch (ExecutionException e){
+            return Helper.fail("The conversion of \"%s\" failed : %s%n", input, e.getCause());
+        }finally{
+            shutdown(pool);
+        }
+    }
+
+    // ==================================================================================
+    // ================================ BATCH HELPERS ===================================
+    // ==================================================================================
+
+    /**
+     * Convert one file and print its result
+     * @return (Result) - The result of the conversion
+     */
+    private static Result convert(boolean encode, Path file, String name, String output, long pixels, long batch){
+        var target = Path.of(output, name.substring(0, name.lastIndexOf('.') + 1) + (encode ? "qoi" : "png")).toString();
+        var begin = System.nanoTime();
+        Result result;
+        try{
+            Files.createDirectories(Path.of("res", target).getParent());
+            if(encode)
+                Main.pngToQoi(file.toString(), target);
+            else
+                Main.qoiToPng(file.toString(), target);
+            var end = System.nanoTime();
+            var source = Files.size(file);
+            var converted = Files.size(Path.of("res", target));
+            result = new Result(name, pixels, encode ? source : converted, encode ? converted : source, end - begin, end - batch, null);
+            System.out.printf("%-40s %10d pixels %10.1f ms %10.1f MB/s %8.1f%%%n",
+                    name, pixels, result.nanos() / 1e6, result.megabytesPerSecond(), result.ratio());
+        }catch (IOException | RuntimeException | AssertionError e){
+            result = new Result(name, pixels, 0, 0, System.nanoTime() - begin, System.nanoTime() - batch, String.valueOf(e.getMessage()).trim());
+            System.out.printf("%-40s FAILED : %s%n", name, result.failure());
+        }
+        return result;
+    }
+
+    /**
+     * List the files of a folder (and its sub-folders) matching at least one of the patterns
+     * @return (List) - The sorted paths of the files
+     */
+    static List<Path> list(Path root, List<String> patterns){
+        var matchers = patterns.stream().map(p -> FileSystems.getDefault().getPathMatcher("glob:" + p)).toArray(PathMatcher[]::new);
+        try(Stream<Path> walk = Files.walk(root)){
+            return walk.filter(Files::isRegularFile)
+                    .filter(path -> Arrays.stream(matchers).anyMatch(m -> m.matches(root.relativize(path))))
+                    .sorted()
+                    .toList();
+        }catch (IOException e){
+            return Helper.fail("Cannot list the files of '%s'", root);
+        }
+    }
+
+    /**
+     * Read the size of a "PNG" image from its header, without decoding it
+     * @return (long) - The number of pixels of the image
+     */
+    private static long pngPixels(Path file) throws IOException {
+        try(var stream = ImageIO.createImageInputStream(file.toFile())){
+            var readers = stream == null ? null : ImageIO.getImageReaders(stream);
+            if(readers == null || !readers.hasNext())
+                throw new IOException("Unknown image format : " + file);
+            var reader = readers.next();
+            try{
+                reader.setInput(stream, true, true);
+                return (long) reader.getWidth(0) * reader.getHeight(0);
+            }finally{
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Read the size of a "QOI" image from its header, without decoding it (See QOIInventory.probe)
+     * @return (long) - The number of pixels of the image
+     */
+    private static long qoiPixels(Path file) throws IOException {
+        var entry = QOIInventory.probe(file);
+        if(entry == null)
+            throw new IOException("Not a \"Quite Ok Image\" file : " + file);
+        return entry.pixels();
+    }
+
+    static void shutdown(ExecutorService pool){
+        pool.shutdown();
+        try{
+            pool.awaitTermination(1, TimeUnit.MINUTES);
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Number of pixels that can still be converted at the same time
+     */
+    private static final class Budget {
+
+        private final long capacity;
+        private long used;
+
+        private Budget(long capacity){
+            this.capacity = capacity;
+        }
+
+        /**
+         * Wait until the pixels fit in the budget. An image larger than the whole
+         * budget waits for all the others to finish
+         */
+        private synchronized void acquire(long pixels) throws InterruptedException {
+            while(used > 0 && used + pixels > capacity)
+                wait();
+            used += pixels;
+        }
+
+        private synchronized void release(long pixels){
+            used -= pixels;
+            notifyAll();
+        }
+    }
+
+}
@@ -0,0 +1,228 @@
+package cs107;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import static cs107.Hash64.PRIME_1;
+import static cs107.Hash64.PRIME_2;
+import static cs107.Hash64.avalanche;
+import static cs107.Hash64.merge;
+import static cs107.Hash64.round;
+import static cs107.Helper.Image;
+
+/**
+ * Cache of decoded "Quite Ok Image" files in front of QOIDecoder.decodeQoiFile, so that
+ * a file decoded before costs a lookup instead of a decoding and a new int[height][width].
+ * A file on the disk is identified by its path, its last modification time and its size,
+ * and a content in memory by a 64-bit hash of its bytes.
+ * The images are kept up to a number of bytes, each image weighing 4 bytes per pixel,
+ * the least recently used being evicted first (See StripedLru).
+ * @apiNote The cache is thread-safe, and the threads asking for the same file while it is
+ * decoded wait for this decoding instead of decoding it again. The returned images are
+ * shared with the cache and the other callers : they must not be modified
+ * @version 1.3
+ * @since 1.3
+ */
+public final class QOIDecodeCache {
+
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Identity of a file on the disk : a file rewritten in place gets a new key
+     */
+    private record FileKey(Path path, long modified, long size){}
+
+    /**
+     * Identity of a content in memory
+     */
+    private record ContentKey(long hash, int length){}
+
+    private final StripedLru<Object, Image> images;
+    // Decodings in progress, completed and removed by the thread decoding
+    private final ConcurrentHashMap<Object, CompletableFuture<Image>> loading = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder loadNanos = new LongAdder();
+
+    /**
+     * Create a new cache
+     * @param capacity (long) - Maximal number of bytes of the images, 4 bytes per pixel
+     * @throws AssertionError if the capacity is not positive
+     */
+    public QOIDecodeCache(long capacity){
+        assert capacity > 0;
+        this.images = new StripedLru<>(capacity, image -> 4L * image.data().length * image.data()[0].length);
+    }
+
+    // ==================================================================================
+    // ================================== CACHE API =====================================
+    // ==================================================================================
+
+    /**
+     * Decode a "Quite Ok Image" file, or return the image of the file if it was decoded
+     * before and the file did not change since (See QOIDecoder.decodeQoiFile(ByteBuffer))
+     * @param path (String) - Relative or Absolute path to the file
+     * @return (Image) - The decoded image, shared with the cache
+     * @throws AssertionError if the path is null or the file is corrupted
+     */
+    public Image decodeQoiFile(String path){
+        assert path != null;
+        var file = Path.of(path).toAbsolutePath().normalize();
+        FileKey key;
+        try{
+            key = new FileKey(file, Files.getLastModifiedTime(file).toMillis(), Files.size(file));
+        }catch (IOException e){
+            return Helper.fail("An error occurred while trying to read from : \"%s\"%n", path);
+        }
+        return get(key, () -> QOIDecoder.decodeQoiFile(Helper.map(path)));
+    }
+
+    /**
+     * Decode the content of a "Quite Ok Image" file, or return the image of the same content
+     * if it was decoded before (See QOIDecoder.decodeQoiFile(byte[]))
+     * @param content (byte[]) - Content of the file to decode
+     * @return (Image) - The decoded image, shared with the cache
+     * @throws AssertionError if content is null or corrupted
+     */
+    public Image decodeQoiFile(byte[] content){
+        assert content != null;
+        return get(new ContentKey(hash(content), content.length), () -> QOIDecoder.decodeQoiFile(content));
+    }
+
+    /**
+     * Hash bytes on 64 bits
+     * @apiNote The bytes are read 8 at a time and mixed in 4 independent lanes, so that
+     * hashing a file is much faster than decoding it
+     * @param content (byte[]) - Bytes to hash
+     * @return (long) - The hash of the bytes
+     * @throws AssertionError if content is null
+     */
+    public static long hash(byte[] content){
+        assert content != null;
+
+        long h0 = PRIME_1 + PRIME_2, h1 = PRIME_2, h2 = 0, h3 = -PRIME_1;
+        int i = 0;
+        for( ; i + 32 <= content.length ; i += 32){
+            h0 = round(h0, (long) LONGS.get(content, i));
+            h1 = round(h1, (long) LONGS.get(content, i + 8));
+            h2 = round(h2, (long) LONGS.get(content, i + 16));
+            h3 = round(h3, (long) LONGS.get(content, i + 24));
+        }
+        long h = merge(h0, h1, h2, h3);
+        for( ; i < content.length ; ++i){
+            h = round(h, content[i]);
+        }
+        h = round(h, content.length);
+        return avalanche(h);
+    }
+
+    /**
+     * @return (long) - Number of images found in the cache
+     */
+    public long hits(){
+        return hits.sum();
+    }
+
+    /**
+     * @return (long) - Number of files decoded
+     */
+    public long misses(){
+        return misses.sum();
+    }
+
+    /**
+     * @return (long) - Number of requests that waited for the decoding of the same file by another thread
+     */
+    public long coalesced(){
+        return coalesced.sum();
+    }
+
+    /**
+     * @return (long) - Number of images evicted
+     */
+    public long evictions(){
+        return images.evictions();
+    }
+
+    /**
+     * @return (long) - Number of bytes of the images in the cache, 4 bytes per pixel
+     */
+    public long bytes(){
+        return images.weight();
+    }
+
+    /**
+     * @return (long) - Time spent decoding the files, summed over the threads
+     */
+    public long loadNanos(){
+        return loadNanos.sum();
+    }
+
+    /**
+     * Evict all the images
+     */
+    public void clear(){
+        images.clear();
+    }
+
+    // ==================================================================================
+    // ================================ CACHE HELPERS ===================================
+    // ==================================================================================
+
+    /**
+     * Find the image of a key, or decode it once whatever the number of threads asking for it
+     */
+    private Image get(Object key, Supplier<Image> decoder){
+        var image = images.get(key);
+        if(image != null){
+            hits.increment();
+            return image;
+        }
+
+        var future = new CompletableFuture<Image>();
+        var pending = loading.putIfAbsent(key, future);
+        if(pending != null){
+            coalesced.increment();
+            try{
+                return pending.join();
+            }catch (CompletionException e){
+                if(e.getCause() instanceof Error error) throw error;
+                if(e.getCause() instanceof RuntimeException exception) throw exception;
+                throw e;
+            }
+        }
+
+        try{
+            // Another thread may have decoded it between the lookup and the registration
+            image = images.get(key);
+            if(image != null){
+                hits.increment();
+            }else{
+                misses.increment();
+                long start = System.nanoTime();
+                image = decoder.get();
+                loadNanos.add(System.nanoTime() - start);
+                images.put(key, image);
+            }
+            future.complete(image);
+            return image;
+        }catch (RuntimeException | Error e){
+            future.completeExceptionally(e);
+            throw e;
+        }finally{
+            loading.remove(key, future);
+        }
+    }
+
+}
@@ -1,5 +1,9 @@
 package cs107;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
 import static cs107.Helper.Image;
 
 /**
@@ -16,6 +20,34 @@ public final class QOIDecoder {
      */
     private QOIDecoder(){}
 
+    // Window where the chunks of a buffer without array are copied before being decoded, one per thread
+    private static final ThreadLocal<byte[]> WINDOW = ThreadLocal.withInitial(() -> new byte[1 << 16]);
+
+    /**
+     * Order of the channels of a pixel in a buffer, 4 bytes per pixel (See decodeQoiFile(byte[], ByteBuffer, ...))
+     */
+    public enum Layout {
+        /** Red, green, blue then alpha */
+        RGBA,
+        /** Blue, green, red then alpha, the order of most little-endian native surfaces */
+        BGRA,
+        /** Alpha, red, green then blue, the order of the packed pixels */
+        ARGB;
+
+        /**
+         * Reorder the channels of a packed (ARGB) pixel
+         * @param pixel (int) - The packed pixel
+         * @return (int) - The pixel whose "Big Endian" bytes are in this layout
+         */
+        int fromARGB(int pixel){
+            return switch (this){
+                case RGBA -> Integer.rotateLeft(pixel, 8);
+                case BGRA -> Integer.reverseBytes(pixel);
+                case ARGB -> pixel;
+            };
+        }
+    }
+
     // ==================================================================================
     // =========================== QUITE OK IMAGE HEADER ================================
     // ==================================================================================
@@ -33,12 +65,37 @@ public final class QOIDecoder {
         assert header[12] == QOISpecification.RGB || header[12] == QOISpecification.RGBA;
         assert header[13] == QOISpecification.sRGB || header[13] == QOISpecification.ALL;
 
+        long start = QOIStatistics.start();
         int[] decoded = new int[]{
                 ArrayUtils.toInt(ArrayUtils.extract(header, 4, 4)),
                 ArrayUtils.toInt(ArrayUtils.extract(header, 8, 4)),
                 header[12],
                 header[13]
         };
+        if(QOIStatistics.ENABLED) QOIStatistics.current().time(QOIStatistics.Phase.HEADER, start);
+
+        return decoded;
+    }
+
+    /**
+     * Extract useful information from the "Quite Ok Image" header at the start of the buffer
+     * @apiNote The header is checked in place, the buffer is neither copied nor moved
+     * @param content (ByteBuffer) - Content of a "Quite Ok Image" file
+     * @return (int[]) - Array such as its content is {width, height, channels, color space}
+     * @throws AssertionError See handouts section 6.1
+     */
+    public static int[] decodeHeader(ByteBuffer content){
+        assert content != null;
+        assert content.limit() >= QOISpecification.HEADER_SIZE;
+        for(int i=0 ; i<QOISpecification.QOI_MAGIC.length ; ++i){
+            assert content.get(i) == QOISpecification.QOI_MAGIC[i];
+        }
+        assert content.get(12) == QOISpecification.RGB || content.get(12) == QOISpecification.RGBA;
+        assert content.get(13) == QOISpecification.sRGB || content.get(13) == QOISpecification.ALL;
+
+        long start = QOIStatistics.start();
+        int[] decoded = new int[]{readInt(content, 4), readInt(content, 8), content.get(12), content.get(13)};
+        if(QOIStatistics.ENABLED) QOIStatistics.current().time(QOIStatistics.Phase.HEADER, start);
 
         return decoded;
     }
@@ -178,115 +235,687 @@ public final class QOIDecoder {
         assert data != null;
         assert width > 0 && height > 0;
 
-        //* Etape 1
+        return ArrayUtils.pixelsToChannels(decodeData(data, new int[width*height]));
+    }
+
+    /**
+     * Decode the given data using the "Quite Ok Image" Protocol
+     * @apiNote Same decoding as decodeData(byte[], int, int) but each pixel is packed (ARGB) in one integer
+     * @param data (byte[]) - Data to decode
+     * @param buffer (int[]) - Buffer where to store the packed pixels, its length is width * height
+     * @return (int[]) - The buffer, filled with the decoded "Quite Ok Image"
+     * @throws AssertionError See handouts section 6.3
+     */
+    public static int[] decodeData(byte[] data, int[] buffer){
+        assert data != null;
+        assert buffer != null && buffer.length > 0;
+
+        int consumed = decodeData(data, 0, buffer);
+        assert consumed == data.length;
+
+        return buffer;
+    }
+
+    /**
+     * Decode the pixels of the image stored in input from the given offset,
+     * until the buffer is full
+     * @apiNote The only allocation is the running state, the input is never copied.
+     * To decode a whole file, use QOISpecification.HEADER_SIZE as offset
+     * @param input (byte[]) - Stream of bytes to read from
+     * @param offset (int) - Index in the input of the first chunk
+     * @param buffer (int[]) - Buffer where to store the packed (ARGB) pixels, its length is width * height
+     * @return (int) - The number of consumed bytes
+     * @throws AssertionError if one of the arrays is null or the offset is invalid
+     */
+    public static int decodeData(byte[] input, int offset, int[] buffer){
+        assert buffer != null;
 
-        byte[] previousPixel = QOISpecification.START_PIXEL;
-        int position = 0;
-        int positionHash;
-        byte[][] hashTable = new byte[64][4];
-        byte[][] buffer = new byte[width*height][4]; //output
+        return decodeData(input, offset, QOISpecification.initialState(), buffer, 0, buffer.length);
+    }
 
-        //* Etape 2
+    /**
+     * Decode the pixels of the image stored in input from the given offset,
+     * until the buffer is full
+     * @apiNote The pixels are decoded by blocks in a small packed buffer, so only
+     * the running state and this block are allocated, the input is never copied
+     * @param input (byte[]) - Stream of bytes to read from
+     * @param offset (int) - Index in the input of the first chunk
+     * @param buffer (byte[]) - Buffer where to store the channels (RGBA) of each pixel, its length is width * height * 4
+     * @return (int) - The number of consumed bytes
+     * @throws AssertionError if one of the arrays is null, the offset is invalid or
+     * the length of the buffer is not a multiple of 4
+     */
+    public static int decodeData(byte[] input, int offset, byte[] buffer){
+        assert buffer != null && buffer.length % 4 == 0;
+
+        int[] state = QOISpecification.initialState();
+        int[] block = new int[Math.min(1024, buffer.length / 4)];
+        int pixels = buffer.length / 4;
+        int idx = offset;
+
+        for(int position = 0 ; position < pixels ; position += block.length){
+            int count = Math.min(block.length, pixels - position);
+            idx += decodeData(input, idx, state, block, 0, count);
+            ArrayUtils.pixelsToBytes(block, 0, count, QOISpecification.RGBA, buffer, position * 4);
+        }
 
-        for(int idx=0 ; idx<data.length ;){
+        return idx - offset;
+    }
 
-            byte tag = (byte) (data[idx] & 0b11_00_00_00);
+    /**
+     * Decode the pixels from (inclusive) to (exclusive) of the buffer, starting from
+     * the given running state. The state is updated so that the decoding can be resumed
+     * with the next pixels : a run that goes beyond the last pixel is kept in the state.
+     * @apiNote No memory is allocated, the running state is kept in local variables
+     * @param input (byte[]) - Stream of bytes to read from
+     * @param offset (int) - Index in the input of the next chunk
+     * @param state (int[]) - Running state (See QOISpecification.initialState)
+     * @param buffer (int[]) - Buffer where to store the packed (ARGB) pixels
+     * @param from (int) - Index in the buffer of the first pixel to decode (inclusive)
+     * @param to (int) - Index in the buffer of the last pixel to decode (exclusive)
+     * @return (int) - The number of consumed bytes
+     * @throws AssertionError if one of the arrays is null or the indices are invalid
+     */
+    public static int decodeData(byte[] input, int offset, int[] state, int[] buffer, int from, int to){
+        assert input != null && buffer != null;
+        assert state != null && state.length == QOISpecification.STATE_SIZE;
+        assert offset >= 0 && offset <= input.length;
+        assert from >= 0 && from <= to && to <= buffer.length;
 
-            switch(tag){
+        return decodeChunks(input, offset, state, buffer, from, to);
+    }
 
-                case QOISpecification.QOI_OP_INDEX_TAG -> {
-                    positionHash = data[idx] & 0b00_11_11_11;
-                    byte[] pixel = hashTable[positionHash]; 
+    /**
+     * Decode the pixels from (inclusive) to (exclusive) of the buffer, starting from
+     * the given running state, reading the chunks from a ByteBuffer
+     * @apiNote Same decoding as decodeData(byte[], int, int[], int[], int, int), by the same loop.
+     * The bytes are read with absolute accesses, so the position of the input is left untouched.
+     * A buffer backed by an array is decoded in place, any other buffer (direct or memory-mapped)
+     * through a window of the thread that only moves forward : the file is never copied on the heap
+     * @param input (ByteBuffer) - Bytes to read from
+     * @param offset (int) - Index in the input of the next chunk
+     * @param state (int[]) - Running state (See QOISpecification.initialState)
+     * @param buffer (int[]) - Buffer where to store the packed (ARGB) pixels
+     * @param from (int) - Index in the buffer of the first pixel to decode (inclusive)
+     * @param to (int) - Index in the buffer of the last pixel to decode (exclusive)
+     * @return (int) - The number of consumed bytes
+     * @throws AssertionError if one of the arguments is null or the indices are invalid
+     */
+    public static int decodeData(ByteBuffer input, int offset, int[] state, int[] buffer, int from, int to){
+        assert input != null && buffer != null;
+        assert state != null && state.length == QOISpecification.STATE_SIZE;
+        assert offset >= 0 && offset <= input.limit();
+        assert from >= 0 && from <= to && to <= buffer.length;
+
+        if(input.hasArray()){
+            return decodeChunks(input.array(), input.arrayOffset() + offset, state, buffer, from, to);
+        }
 
-                    buffer[position] = pixel;
-                    previousPixel = pixel;
+        return throughWindow(input, offset, state, buffer, from, to - from);
+    }
 
-                    idx++;
+    /**
+     * Skip the next pixels of the image, starting from the given running state.
+     * Only the previous pixel and the index are updated, no pixel is written and
+     * a run is skipped at once
+     * @apiNote A run that goes beyond the last skipped pixel is kept in the state
+     * @param input (byte[]) - Stream of bytes to read from
+     * @param offset (int) - Index in the input of the next chunk
+     * @param state (int[]) - Running state (See QOISpecification.initialState)
+     * @param count (long) - Number of pixels to skip
+     * @return (int) - The number of consumed bytes
+     * @throws AssertionError if one of the arrays is null or the count is negative
+     */
+    public static int skipData(byte[] input, int offset, int[] state, long count){
+        assert input != null;
+        assert state != null && state.length == QOISpecification.STATE_SIZE;
+        assert offset >= 0 && offset <= input.length;
+        assert count >= 0;
+
+        return skipChunks(input, offset, state, count);
+    }
+
+    /**
+     * Skip the next pixels of the image, starting from the given running state.
+     * Only the previous pixel and the index are updated, no pixel is written and
+     * a run is skipped at once
+     * @apiNote A run that goes beyond the last skipped pixel is kept in the state. As for decodeData,
+     * a buffer backed by an array is read in place and any other buffer through the window of the thread
+     * @param input (ByteBuffer) - Bytes to read from, with absolute accesses
+     * @param offset (int) - Index in the input of the next chunk
+     * @param state (int[]) - Running state (See QOISpecification.initialState)
+     * @param count (long) - Number of pixels to skip
+     * @return (int) - The number of consumed bytes
+     * @throws AssertionError if one of the arrays is null or the count is negative
+     */
+    public static int skipData(ByteBuffer input, int offset, int[] state, long count){
+        assert input != null;
+        assert state != null && state.length == QOISpecification.STATE_SIZE;
+        assert offset >= 0 && offset <= input.limit();
+        assert count >= 0;
+
+        if(input.hasArray()){
+            return skipChunks(input.array(), input.arrayOffset() + offset, state, count);
+        }
+        return throughWindow(input, offset, state, null, 0, count);
+    }
+
+    /**
+     * Decode a file using the "Quite Ok Image" Protocol
+     * @param content (byte[]) - Content of the file to decode
+     * @return (Image) - Decoded image
+     * @throws AssertionError if content is null
+     */
+    public static Image decodeQoiFile(byte[] content){
+        assert content != null;
+        var event = new QOIEvents.Decode();
+        event.begin();
+
+        Image image = QOIDecoderContext.current().decodeImage(content);
+        int[][] data = image.data();
+        event.end(null, data[0].length, data.length, image.channels(), content.length, 4L * data.length * data[0].length);
+
+        return image;
+    }
+
+    /**
+     * Decode a file using the "Quite Ok Image" Protocol
+     * @apiNote The magic number and the "End Of File" are checked in place and the chunks
+     * are read directly from the buffer : a memory-mapped file (See Helper::map) is never
+     * copied on the heap
+     * @param content (ByteBuffer) - Content of the file to decode, from index 0 to its limit
+     * @return (Image) - Decoded image
+     * @throws AssertionError if content is null or corrupted
+     */
+    public static Image decodeQoiFile(ByteBuffer content){
+        assert content != null;
+        var event = new QOIEvents.Decode();
+        event.begin();
+        int eof = content.limit() - QOISpecification.QOI_EOF.length;
+        assert eof >= QOISpecification.HEADER_SIZE;
+        for(int i=0 ; i<QOISpecification.QOI_EOF.length ; ++i){
+            assert content.get(eof + i) == QOISpecification.QOI_EOF[i];
+        }
+
+        int[] header = decodeHeader(content);
+        int width = header[0];
+        int height = header[1];
+
+        int[] data = new int[width*height];
+        int consumed = decodeData(content, QOISpecification.HEADER_SIZE, QOISpecification.initialState(), data, 0, data.length);
+        assert consumed == eof - QOISpecification.HEADER_SIZE;
+        int[][] image_data = ArrayUtils.pixelsToImage(data, height, width);
+        event.end(null, width, height, (byte) header[2], content.limit(), 4L * data.length);
+
+        return Helper.generateImage(image_data, (byte) header[2], (byte) header[3]);
+    }
+
+    // ==================================================================================
+    // ============================ OFF-HEAP DECODING METHODS ===========================
+    // ==================================================================================
+
+    /**
+     * Decode a "Quite Ok Image" file straight into a buffer, such as a direct buffer shared
+     * with native code, 4 bytes per pixel in the given layout. Row i starts at offset + i * stride :
+     * the bytes between the end of a row and the start of the next one are left as is
+     * @apiNote Only one row of packed pixels is kept on the heap, whatever the size of the image.
+     * The channels are written in the given order, whatever the byte order of the buffer
+     * @param content (byte[]) - Content of the file to decode
+     * @param target (ByteBuffer) - Buffer where to write the pixels, from absolute indices
+     * @param offset (int) - Index of the first pixel in the buffer
+     * @param layout (Layout) - Order of the channels of a pixel in the buffer
+     * @param stride (int) - Number of bytes between the start of two rows, at least 4 * width
+     * @return (int[]) - The header of the file (See decodeHeader)
+     * @throws AssertionError if content is null or corrupted, the buffer is null, read-only or too small,
+     * the layout is null or the stride is too small
+     */
+    public static int[] decodeQoiFile(byte[] content, ByteBuffer target, int offset, Layout layout, int stride){
+        assert content != null;
+        return decodeQoiFile(ByteBuffer.wrap(content), target, offset, layout, stride);
+    }
+
+    /**
+     * Decode a "Quite Ok Image" file straight into a buffer, such as a direct buffer shared
+     * with native code, 4 bytes per pixel in the given layout. Row i starts at offset + i * stride :
+     * the bytes between the end of a row and the start of the next one are left as is
+     * @apiNote With a memory-mapped file (See Helper::map) and a direct target, neither the file
+     * nor the pixels are ever copied on the heap : only one row of packed pixels is
+     * @param content (ByteBuffer) - Content of the file to decode, from index 0 to its limit
+     * @param target (ByteBuffer) - Buffer where to write the pixels, from absolute indices
+     * @param offset (int) - Index of the first pixel in the buffer
+     * @param layout (Layout) - Order of the channels of a pixel in the buffer
+     * @param stride (int) - Number of bytes between the start of two rows, at least 4 * width
+     * @return (int[]) - The header of the file (See decodeHeader)
+     * @throws AssertionError if content is null or corrupted, the buffer is null, read-only or too small,
+     * the layout is null or the stride is too small
+     */
+    public static int[] decodeQoiFile(ByteBuffer content, ByteBuffer target, int offset, Layout layout, int stride){
+        assert content != null;
+        var event = new QOIEvents.Decode();
+        event.begin();
+        int[] header = decodeHeader(content);
+        int width = header[0];
+        int height = header[1];
+        checkTarget(target, offset, layout, stride, width, height);
+
+        int[] state = QOISpecification.initialState();
+        int[] row = new int[width];
+        int idx = QOISpecification.HEADER_SIZE;
+        for(int i=0 ; i<height ; ++i){
+            idx += decodeData(content, idx, state, row, 0, width);
+            writeRow(row, target, offset + i * stride, layout);
+        }
+        assert idx == content.limit() - QOISpecification.QOI_EOF.length;
+        event.end(null, width, height, (byte) header[2], content.limit(), (long) height * stride);
+
+        return header;
+    }
+
+    // ==================================================================================
+    // ============================== REGION DECODING METHODS ===========================
+    // ==================================================================================
+
+    /**
+     * Decode a window of a "Quite Ok Image" file, without decoding the full image.
+     * The pixels before the window and between its rows are only skipped (See skipData),
+     * and the decoding stops at the last pixel of the window : the rest of the file is never read
+     * @apiNote The memory used only depends on the size of the window
+     * @param content (byte[]) - Content of the file to decode
+     * @param x (int) - Column of the top left corner of the window
+     * @param y (int) - Row of the top left corner of the window
+     * @param width (int) - Width of the window
+     * @param height (int) - Height of the window
+     * @return (Image) - Decoded window, with the channels and the color space of the file
+     * @throws AssertionError if content is null or corrupted, or the window is empty or not inside the image
+     */
+    public static Image decodeRegion(byte[] content, int x, int y, int width, int height){
+        assert content != null;
+        return decodeRegion(ByteBuffer.wrap(content), x, y, width, height);
+    }
+
+    /**
+     * Decode a window of a "Quite Ok Image" file, without decoding the full image.
+     * The pixels before the window and between its rows are only skipped (See skipData),
+     * and the decoding stops at the last pixel of the window : the rest of the file is never read
+     * @apiNote The memory used only depends on the size of the window, and only
+     * the pages of a memory-mapped file (See Helper::map) up to the end of the window are touched
+     * @param content (ByteBuffer) - Content of the file to decode
+     * @param x (int) - Column of the top left corner of the window
+     * @param y (int) - Row of the top left corner of the window
+     * @param width (int) - Width of the window
+     * @param height (int) - Height of the window
+     * @return (Image) - Decoded window, with the channels and the color space of the file
+     * @throws AssertionError if content is null or corrupted, or the window is empty or not inside the image
+     */
+    public static Image decodeRegion(ByteBuffer content, int x, int y, int width, int height){
+        assert content != null;
+        int[] header = decodeHeader(content);
+        assert width > 0 && height > 0;
+        assert x >= 0 && y >= 0 && x + width <= header[0] && y + height <= header[1];
+
+        int[] state = QOISpecification.initialState();
+        int[] data = new int[width*height];
+        int idx = QOISpecification.HEADER_SIZE;
+        idx += skipData(content, idx, state, (long) y * header[0] + x);
+        for(int row=0 ; row<height ; ++row){
+            idx += decodeData(content, idx, state, data, row*width, (row+1)*width);
+            if(row < height - 1){
+                idx += skipData(content, idx, state, header[0] - width);
+            }
+        }
+        int[][] image_data = ArrayUtils.pixelsToImage(data, height, width);
+
+        return Helper.generateImage(image_data, (byte) header[2], (byte) header[3]);
+    }
+
+    // ==================================================================================
+    // ============================ THUMBNAIL DECODING METHODS ==========================
+    // ==================================================================================
+
+    /**
+     * Decode a "Quite Ok Image" file downscaled by the given factor, in a single pass
+     * over the chunks and without building the full image. Only one row of the image
+     * (and, for the box filter, the sums of one row of the thumbnail) is kept in memory.
+     * @apiNote The thumbnail has ceil(width / factor) columns and ceil(height / factor) rows.
+     * With the box filter, each pixel is the rounded mean of the channels of its block (the blocks
+     * on the right and bottom borders can be smaller). Otherwise, each pixel is the top left
+     * pixel of its block and the other rows of the block are only skipped (See skipData)
+     * @param content (byte[]) - Content of the file to decode
+     * @param factor (int) - Downscaling factor, one of 1, 2, 4 or 8
+     * @param filter (boolean) - true for the box filter, false for point sampling
+     * @return (Image) - The thumbnail, with the channels and the color space of the file
+     * @throws AssertionError if content is null or corrupted, or the factor is not supported
+     */
+    public static Image decodeThumbnail(byte[] content, int factor, boolean filter){
+        assert content != null;
+        assert factor == 1 || factor == 2 || factor == 4 || factor == 8;
+        int[] header = decodeHeader(ArrayUtils.extract(content, 0, QOISpecification.HEADER_SIZE));
+        int width = header[0];
+        int height = header[1];
+        int columns = (width + factor - 1) / factor;
+        int rows = (height + factor - 1) / factor;
+
+        int[] state = QOISpecification.initialState();
+        int[] row = new int[width];
+        int[][] thumbnail = new int[rows][columns];
+        // Sums of the blocks of the current row of the thumbnail, channel by channel (A, R, G, B)
+        int[] sums = filter ? new int[columns * 4] : null;
+        int shift = Integer.numberOfTrailingZeros(factor);
+        int idx = QOISpecification.HEADER_SIZE;
+
+        for(int y=0 ; y<height ; y += factor){
+            int blockHeight = Math.min(factor, height - y);
+            int[] output = thumbnail[y / factor];
+            if(!filter){
+                idx += decodeData(content, idx, state, row, 0, width);
+                for(int x=0 ; x<columns ; ++x){
+                    output[x] = row[x * factor];
                 }
+                idx += skipData(content, idx, state, (long) (blockHeight - 1) * width);
+                continue;
+            }
 
-                case QOISpecification.QOI_OP_DIFF_TAG -> {
-                    byte chunk = data[idx];
-                    previousPixel = decodeQoiOpDiff(previousPixel, chunk);
+            Arrays.fill(sums, 0);
+            for(int line=0 ; line<blockHeight ; ++line){
+                idx += decodeData(content, idx, state, row, 0, width);
+                for(int x=0 ; x<width ; ++x){
+                    int pixel = row[x];
+                    int k = x >> shift << 2;
+                    sums[k] += pixel >>> 24;
+                    sums[k+1] += pixel >> 16 & 0xFF;
+                    sums[k+2] += pixel >> 8 & 0xFF;
+                    sums[k+3] += pixel & 0xFF;
+                }
+            }
+            for(int x=0 ; x<columns ; ++x){
+                int count = blockHeight * Math.min(factor, width - x * factor);
+                int k = x * 4;
+                output[x] = (sums[k] + count / 2) / count << 24
+                        | (sums[k+1] + count / 2) / count << 16
+                        | (sums[k+2] + count / 2) / count << 8
+                        | (sums[k+3] + count / 2) / count;
+            }
+        }
+
+        return Helper.generateImage(thumbnail, (byte) header[2], (byte) header[3]);
+    }
+
+    // ==================================================================================
+    // ================================ DECODING HELPERS ================================
+    // ==================================================================================
+
+    /**
+     * Decode, or skip if the buffer is null, the next pixels of a buffer without array (direct or
+     * memory-mapped) through the window of the thread. A pixel takes at most 5 bytes : n bytes in
+     * the window hold all the chunks of n / 5 pixels. The window holds the bytes from base (inclusive)
+     * to end (exclusive) of the input, and slides to the next chunk only when less than half of what
+     * the pixels left may need is ahead : a byte is copied about twice, and a few pixels copy a few bytes
+     * @param input (ByteBuffer) - Bytes to read from, with absolute accesses
+     * @param offset (int) - Index in the input of the next chunk
+     * @param state (int[]) - Running state (See QOISpecification.initialState)
+     * @param buffer (int[]) - Buffer where to store the packed (ARGB) pixels, or null to skip them
+     * @param from (int) - Index in the buffer of the first pixel to decode
+     * @param count (long) - Number of pixels to decode or skip
+     * @return (int) - The number of consumed bytes
+     */
+    private static int throughWindow(ByteBuffer input, int offset, int[] state, int[] buffer, int from, long count){
+        byte[] window = WINDOW.get();
+        int limit = input.limit();
+        int idx = offset;
+        int base = offset;
+        int end = offset;
+        int position = from;
+        while(count > 0){
+            int needed = (int) Math.min(window.length, 5 * count);
+            if(end - idx < Math.max(5, needed / 2) && end < limit){
+                base = idx;
+                end = Math.min(limit, idx + needed);
+                input.get(base, window, 0, end - base);
+            }
+            byte[] chunks = window;
+            int start = idx - base;
+            int length = (int) Math.min(count, (end - idx) / 5);
+            if(length == 0){
+                // Less than 5 bytes left in the input : the last pixel is read from an exact copy,
+                // so that a truncated input fails as it does from an array
+                chunks = new byte[end - idx];
+                input.get(idx, chunks);
+                start = 0;
+                length = 1;
+            }
+            idx += buffer == null ? skipChunks(chunks, start, state, length)
+                    : decodeChunks(chunks, start, state, buffer, position, position + length);
+            position += length;
+            count -= length;
+        }
+        return idx - offset;
+    }
+
+    /**
+     * Decode the chunks of the pixels from (inclusive) to (exclusive), starting from the given running state.
+     * The only decoding loop of the decoder, shared by all the overloads of decodeData
+     * @param input (byte[]) - Bytes to read from
+     * @param offset (int) - Index in the input of the next chunk
+     * @param state (int[]) - Running state, updated (See QOISpecification.initialState)
+     * @param buffer (int[]) - Buffer where to store the packed (ARGB) pixels
+     * @param from (int) - Index of the first pixel (inclusive)
+     * @param to (int) - Index of the last pixel (exclusive)
+     * @return (int) - The number of consumed bytes
+     */
+    private static int decodeChunks(byte[] input, int offset, int[] state, int[] buffer, int from, int to){
+        long start = QOIStatistics.start();
+        QOIStatistics statistics = QOIStatistics.ENABLED ? QOIStatistics.current() : null;
+        int previousPixel = state[QOISpecification.STATE_PREVIOUS];
+        int run = state[QOISpecification.STATE_RUN];
+        int position = from;
+        int idx = offset;
+
+        if(run > 0){
+            int rep = Math.min(run, to - position);
+            Arrays.fill(buffer, position, position + rep, previousPixel);
+            position += rep;
+            run -= rep;
+        }
+
+        while(position < to){
+            byte chunk = input[idx];
+            if(QOIStatistics.ENABLED) statistics.decoded(chunk);
+
+            if(chunk == QOISpecification.QOI_OP_RGB_TAG){
+                previousPixel = previousPixel & 0xFF_00_00_00 | (input[idx+1] & 0xFF) << 16 | (input[idx+2] & 0xFF) << 8 | input[idx+3] & 0xFF;
+                state[QOISpecification.hash(previousPixel)] = previousPixel;
+                buffer[position++] = previousPixel;
+                idx += 4;
+                continue;
+            }
+            if(chunk == QOISpecification.QOI_OP_RGBA_TAG){
+                previousPixel = (input[idx+4] & 0xFF) << 24 | (input[idx+1] & 0xFF) << 16 | (input[idx+2] & 0xFF) << 8 | input[idx+3] & 0xFF;
+                state[QOISpecification.hash(previousPixel)] = previousPixel;
+                buffer[position++] = previousPixel;
+                idx += 5;
+                continue;
+            }
 
-                    buffer[position] = previousPixel;
-                    hashTable[QOISpecification.hash(previousPixel)] = previousPixel;
+            switch((byte) (chunk & 0b11_00_00_00)){
 
+                case QOISpecification.QOI_OP_INDEX_TAG -> {
+                    previousPixel = state[chunk];
+                    buffer[position++] = previousPixel;
                     idx++;
                 }
 
-                case QOISpecification.QOI_OP_LUMA_TAG -> {
-                    byte[] chunk = new byte[]{data[idx], data[idx+1]};
-                    previousPixel = decodeQoiOpLuma(previousPixel, chunk);
+                case QOISpecification.QOI_OP_DIFF_TAG -> {
+                    previousPixel = add(previousPixel, (chunk >> 4 & 0b11) - 2, (chunk >> 2 & 0b11) - 2, (chunk & 0b11) - 2);
+                    state[QOISpecification.hash(previousPixel)] = previousPixel;
+                    buffer[position++] = previousPixel;
+                    idx++;
+                }
 
-                    buffer[position] = previousPixel;
-                    hashTable[QOISpecification.hash(previousPixel)] = previousPixel;
-        
+                case QOISpecification.QOI_OP_LUMA_TAG -> {
+                    int dg = (chunk & 0b00_11_11_11) - 32;
+                    byte next = input[idx+1];
+                    previousPixel = add(previousPixel, dg + (next >> 4 & 0b11_11) - 8, dg, dg + (next & 0b11_11) - 8);
+                    state[QOISpecification.hash(previousPixel)] = previousPixel;
+                    buffer[position++] = previousPixel;
                     idx += 2;
                 }
 
                 default -> {
+                    int length = (chunk & 0b00_11_11_11) + 1;
+                    int rep = Math.min(length, to - position);
+                    Arrays.fill(buffer, position, position + rep, previousPixel);
+                    position += rep;
+                    run = length - rep;
+                    idx++;
+                }
+            }
+        }
 
-                    tag = (byte) (data[idx]);
-
-                    switch(tag){
+        state[QOISpecification.STATE_PREVIOUS] = previousPixel;
+        state[QOISpecification.STATE_RUN] = run;
+        if(QOIStatistics.ENABLED) statistics.time(QOIStatistics.Phase.DATA, start);
 
-                        case QOISpecification.QOI_OP_RGB_TAG -> {
-                            idx += decodeQoiOpRGB(buffer, data, (byte) previousPixel[QOISpecification.a], position, idx+1);
+        return idx - offset;
+    }
 
-                            previousPixel = buffer[position];
-                            hashTable[QOISpecification.hash(previousPixel)] = previousPixel;
+    /**
+     * The skipping loop of the decoder, shared by all the overloads of skipData : the same chunks
+     * as decodeChunks, but only the previous pixel and the index are updated
+     * @param input (byte[]) - Bytes to read from
+     * @param offset (int) - Index in the input of the next chunk
+     * @param state (int[]) - Running state (See QOISpecification.initialState)
+     * @param count (long) - Number of pixels to skip
+     * @return (int) - The number of consumed bytes
+     */
+    private static int skipChunks(byte[] input, int offset, int[] state, long count){
+        int previousPixel = state[QOISpecification.STATE_PREVIOUS];
+        long remaining = count - Math.min(count, state[QOISpecification.STATE_RUN]);
+        int run = (int) (state[QOISpecification.STATE_RUN] - (count - remaining));
+        int idx = offset;
+
+        while(remaining > 0){
+            byte chunk = input[idx];
+
+            if(chunk == QOISpecification.QOI_OP_RGB_TAG){
+                previousPixel = previousPixel & 0xFF_00_00_00 | (input[idx+1] & 0xFF) << 16 | (input[idx+2] & 0xFF) << 8 | input[idx+3] & 0xFF;
+                state[QOISpecification.hash(previousPixel)] = previousPixel;
+                remaining--;
+                idx += 4;
+                continue;
+            }
+            if(chunk == QOISpecification.QOI_OP_RGBA_TAG){
+                previousPixel = (input[idx+4] & 0xFF) << 24 | (input[idx+1] & 0xFF) << 16 | (input[idx+2] & 0xFF) << 8 | input[idx+3] & 0xFF;
+                state[QOISpecification.hash(previousPixel)] = previousPixel;
+                remaining--;
+                idx += 5;
+                continue;
+            }
 
-                            idx++;
-                        }
+            switch((byte) (chunk & 0b11_00_00_00)){
 
-                        case QOISpecification.QOI_OP_RGBA_TAG -> {
-                            idx += decodeQoiOpRGBA(buffer, data, position, idx+1);
+                case QOISpecification.QOI_OP_INDEX_TAG -> {
+                    previousPixel = state[chunk];
+                    remaining--;
+                    idx++;
+                }
 
-                            previousPixel = buffer[position];
-                            hashTable[QOISpecification.hash(previousPixel)] = previousPixel;
+                case QOISpecification.QOI_OP_DIFF_TAG -> {
+                    previousPixel = add(previousPixel, (chunk >> 4 & 0b11) - 2, (chunk >> 2 & 0b11) - 2, (chunk & 0b11) - 2);
+                    state[QOISpecification.hash(previousPixel)] = previousPixel;
+                    remaining--;
+                    idx++;
+                }
 
-                            idx++;
-                        }
+                case QOISpecification.QOI_OP_LUMA_TAG -> {
+                    int dg = (chunk & 0b00_11_11_11) - 32;
+                    byte next = input[idx+1];
+                    previousPixel = add(previousPixel, dg + (next >> 4 & 0b11_11) - 8, dg, dg + (next & 0b11_11) - 8);
+                    state[QOISpecification.hash(previousPixel)] = previousPixel;
+                    remaining--;
+                    idx += 2;
+                }
 
-                        default -> {
-                            byte chunk = (byte) (data[idx] & 0b00_11_11_11);
-                            int rep = decodeQoiOpRun(buffer, previousPixel, chunk, position);
-        
-                            position += rep;
-                            previousPixel = buffer[position];
-                        
-                            idx++;
-                        }
-                    }
+                default -> {
+                    int length = (chunk & 0b00_11_11_11) + 1;
+                    int rep = (int) Math.min(length, remaining);
+                    remaining -= rep;
+                    run = length - rep;
+                    idx++;
                 }
             }
-
-            position++;
         }
 
-        assert position == buffer.length;
+        state[QOISpecification.STATE_PREVIOUS] = previousPixel;
+        state[QOISpecification.STATE_RUN] = run;
 
-        return buffer;
+        return idx - offset;
     }
 
     /**
-     * Decode a file using the "Quite Ok Image" Protocol
-     * @param content (byte[]) - Content of the file to decode
-     * @return (Image) - Decoded image
-     * @throws AssertionError if content is null
+     * Add the given differences to each color channel of a packed (ARGB) pixel.
+     * The alpha channel is kept as is and each channel wraps around on overflow
+     * @param pixel (int) - The packed pixel
+     * @param dr (int) - Difference on the red channel
+     * @param dg (int) - Difference on the green channel
+     * @param db (int) - Difference on the blue channel
+     * @return (int) - The new packed pixel
      */
-    public static Image decodeQoiFile(byte[] content){
-        assert content != null;
-        assert ArrayUtils.equals(ArrayUtils.extract(content, content.length-QOISpecification.QOI_EOF.length, QOISpecification.QOI_EOF.length), QOISpecification.QOI_EOF);
+    private static int add(int pixel, int dr, int dg, int db){
+        return pixel & 0xFF_00_00_00 | ((pixel >> 16) + dr & 0xFF) << 16 | ((pixel >> 8) + dg & 0xFF) << 8 | (pixel + db & 0xFF);
+    }
 
-        int[] header = decodeHeader(ArrayUtils.extract(content, 0, QOISpecification.HEADER_SIZE));
-        int width = header[0];
-        int height = header[1];
+    /**
+     * Check that the rows of an image fit in a writable buffer
+     * @param target (ByteBuffer) - Buffer where to write the pixels
+     * @param offset (int) - Index of the first pixel in the buffer
+     * @param layout (Layout) - Order of the channels of a pixel in the buffer
+     * @param stride (int) - Number of bytes between the start of two rows
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     */
+    private static void checkTarget(ByteBuffer target, int offset, Layout layout, int stride, int width, int height){
+        assert target != null && !target.isReadOnly() && layout != null;
+        assert offset >= 0 && stride >= 4 * width;
+        assert offset + (long) (height - 1) * stride + 4L * width <= target.limit();
+    }
+
+    /**
+     * Write a row of packed pixels in a buffer, 4 bytes per pixel in the given layout
+     * @param row (int[]) - The packed (ARGB) pixels
+     * @param target (ByteBuffer) - Buffer where to write the pixels
+     * @param position (int) - Index of the first pixel in the buffer
+     * @param layout (Layout) - Order of the channels of a pixel in the buffer
+     */
+    private static void writeRow(int[] row, ByteBuffer target, int position, Layout layout){
+        long start = QOIStatistics.start();
+        // putInt writes in the order of the buffer, the layout is the order of the bytes in memory
+        boolean swap = target.order() == ByteOrder.LITTLE_ENDIAN;
+        for(int pixel : row){
+            int value = layout.fromARGB(pixel);
+            target.putInt(position, swap ? Integer.reverseBytes(value) : value);
+            position += 4;
+        }
+        if(QOIStatistics.ENABLED) QOIStatistics.current().time(QOIStatistics.Phase.CONVERSION, start);
+    }
 
-        byte[][] data = decodeData(ArrayUtils.extract(content, QOISpecification.HEADER_SIZE, content.length-QOISpecification.HEADER_SIZE-QOISpecification.QOI_EOF.length), width, height);
-        int[][] image_data = ArrayUtils.channelsToImage(data, height, width);
+    /**
+     * Read a "Big Endian" integer in an array
+     * @param input (byte[]) - Bytes to read from
+     * @param offset (int) - Index of the first byte of the integer
+     * @return (int) - The integer
+     */
+    static int readInt(byte[] input, int offset){
+        return (input[offset] & 0xFF) << 24 | (input[offset+1] & 0xFF) << 16 | (input[offset+2] & 0xFF) << 8 | input[offset+3] & 0xFF;
+    }
 
-        return Helper.generateImage(image_data, (byte) header[2], (byte) header[3]);
+    /**
+     * Read a "Big Endian" integer in the buffer, whatever the byte order of the buffer
+     * @param input (ByteBuffer) - Bytes to read from
+     * @param offset (int) - Index of the first byte of the integer
+     * @return (int) - The integer
+     */
+    private static int readInt(ByteBuffer input, int offset){
+        return (input.get(offset) & 0xFF) << 24 | (input.get(offset+1) & 0xFF) << 16 | (input.get(offset+2) & 0xFF) << 8 | input.get(offset+3) & 0xFF;
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,147 @@
+package cs107;
+
+import static cs107.Helper.Image;
+
+/**
+ * Reusable "Quite Ok Image" decoder. A context owns its running state and a growable
+ * pixel buffer, reset between two images, and reads the header in place, so that once
+ * the buffer is large enough decoding an image to packed pixels allocates nothing.
+ * @apiNote A context is not thread-safe : use one context per thread, such as the one
+ * of current(). The pixel buffer is reused by the next call, copy it to keep the pixels.
+ * The static methods of QOIDecoder are thin wrappers on the context of the current thread
+ * @version 1.3
+ * @since 1.3
+ */
+public final class QOIDecoderContext {
+
+    private static final ThreadLocal<QOIDecoderContext> POOL = ThreadLocal.withInitial(QOIDecoderContext::new);
+
+    private final int[] state = QOISpecification.initialState();
+    private int[] pixels = new int[0];
+
+    private int width;
+    private int height;
+    private byte channels;
+    private byte colorSpace;
+
+    /**
+     * Create a new context, with an empty buffer
+     */
+    public QOIDecoderContext(){}
+
+    /**
+     * Context of the current thread, created on the first call
+     * @return (QOIDecoderContext) - The context of the current thread
+     */
+    public static QOIDecoderContext current(){
+        return POOL.get();
+    }
+
+    /**
+     * Buffer holding the pixels of the last decoded file, from index 0 to width() * height()
+     * @apiNote The buffer can be longer than the image
+     * @return (int[]) - The pixel buffer of the context
+     */
+    public int[] pixels(){
+        return pixels;
+    }
+
+    /**
+     * @return (int) - Width of the last decoded image
+     */
+    public int width(){
+        return width;
+    }
+
+    /**
+     * @return (int) - Height of the last decoded image
+     */
+    public int height(){
+        return height;
+    }
+
+    /**
+     * @return (byte) - Number of channels of the last decoded image
+     */
+    public byte channels(){
+        return channels;
+    }
+
+    /**
+     * @return (byte) - Color space of the last decoded image
+     */
+    public byte colorSpace(){
+        return colorSpace;
+    }
+
+    // ==================================================================================
+    // ============================== CONTEXT DECODING ==================================
+    // ==================================================================================
+
+    /**
+     * Decode a "Quite Ok Image" file in the pixel buffer of the context
+     * @param content (byte[]) - Content of the file to decode
+     * @return (int) - Number of decoded pixels (width() * height())
+     * @throws AssertionError if content is null or corrupted
+     */
+    public int decodeQoiFile(byte[] content){
+        readHeader(content);
+        int count = width * height;
+        if(pixels.length < count){
+            pixels = new int[Math.max(count, Math.min(Integer.MAX_VALUE - 8, pixels.length * 3 / 2))];
+        }
+
+        QOISpecification.resetState(state);
+        int consumed = QOIDecoder.decodeData(content, QOISpecification.HEADER_SIZE, state, pixels, 0, count);
+        assert consumed == content.length - QOISpecification.HEADER_SIZE - QOISpecification.QOI_EOF.length;
+        return count;
+    }
+
+    /**
+     * Decode a "Quite Ok Image" file to a new image (See QOIDecoder.decodeQoiFile(byte[]))
+     * @apiNote The rows are decoded directly in the image : only the image is allocated
+     * @param content (byte[]) - Content of the file to decode
+     * @return (Image) - Decoded image
+     * @throws AssertionError if content is null or corrupted
+     */
+    public Image decodeImage(byte[] content){
+        readHeader(content);
+        int[][] data = new int[height][width];
+
+        QOISpecification.resetState(state);
+        int idx = QOISpecification.HEADER_SIZE;
+        for(int[] row : data){
+            idx += QOIDecoder.decodeData(content, idx, state, row, 0, width);
+        }
+        assert idx == content.length - QOISpecification.QOI_EOF.length;
+
+        return Helper.generateImage(data, channels, colorSpace);
+    }
+
+    /**
+     * Check the header and the "End Of File" of a file in place and keep the fields of the header
+     * @param content (byte[]) - Content of the file
+     */
+    private void readHeader(byte[] content){
+        assert content != null;
+        assert content.length >= QOISpecification.HEADER_SIZE + QOISpecification.QOI_EOF.length;
+        for(int i=0 ; i<QOISpecification.QOI_MAGIC.length ; ++i){
+            assert content[i] == QOISpecification.QOI_MAGIC[i];
+        }
+        for(int i=0 ; i<QOISpecification.QOI_EOF.length ; ++i){
+            assert content[content.length - QOISpecification.QOI_EOF.length + i] == QOISpecification.QOI_EOF[i];
+        }
+
+        long start = QOIStatistics.start();
+        width = QOIDecoder.readInt(content, 4);
+        height = QOIDecoder.readInt(content, 8);
+        channels = content[12];
+        colorSpace = content[13];
+        if(QOIStatistics.ENABLED) QOIStatistics.current().time(QOIStatistics.Phase.HEADER, start);
+
+        assert width > 0 && height > 0 && (long) width * height <= Integer.MAX_VALUE - 8;
+        assert channels == QOISpecification.RGB || channels == QOISpecification.RGBA;
+        assert colorSpace == QOISpecification.sRGB || colorSpace == QOISpecification.ALL;
+    }
+
+}
@@ -0,0 +1,254 @@
+package cs107;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.atomic.LongAdder;
+
+import static cs107.Hash64.PRIME_1;
+import static cs107.Hash64.PRIME_2;
+import static cs107.Hash64.avalanche;
+import static cs107.Hash64.merge;
+import static cs107.Hash64.round;
+
+/**
+ * Cache of "Quite Ok Image" files in front of QOIEncoder.qoiFile, addressed by a 64-bit
+ * hash of the content of the image (pixels, dimensions, channels and color space), so that
+ * encoding an image seen before only costs hashing its pixels.
+ * The files are kept in memory up to a number of bytes, the least recently used being evicted
+ * first, and optionally written to a folder in "res/" that outlives the memory and the process.
+ * @apiNote The cache is thread-safe. The entries are spread over STRIPES independent
+ * least-recently-used maps, each with its own lock, so that lookups of different images
+ * rarely wait for each other; the eviction is least-recently-used within a map (See StripedLru).
+ * Two threads missing the same image at the same time both encode it.
+ * Two images are considered equal when their hashes are : with 64 bits, a collision is
+ * unlikely but not impossible, the dimensions and the channels are still checked on a hit.
+ * A file of the folder is written under a temporary name then renamed at once, so that it is
+ * never seen half-written; it is only used if it also has the size bounds and the "End Of File"
+ * of a complete file of the image, otherwise the image is encoded again
+ * @version 1.3
+ * @since 1.3
+ */
+public final class QOIEncodeCache {
+
+    /**
+     * Number of independent maps (and locks) of a cache
+     */
+    public static final int STRIPES = StripedLru.STRIPES;
+
+    private final StripedLru<Long, byte[]> files;
+    // Folder of the files in "res/", or null
+    private final Path folder;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Create a new in-memory cache
+     * @param capacity (long) - Maximal number of bytes of the files kept in memory
+     * @throws AssertionError if the capacity is not positive
+     */
+    public QOIEncodeCache(long capacity){
+        this(capacity, null);
+    }
+
+    /**
+     * Create a new cache, with a folder keeping all the encoded files
+     * @param capacity (long) - Maximal number of bytes of the files kept in memory
+     * @param folder (String) - Folder, in "res/", where the files are written
+     *               and looked up on a miss in memory, or null to only keep the files in memory
+     * @throws AssertionError if the capacity is not positive
+     */
+    public QOIEncodeCache(long capacity, String folder){
+        assert capacity > 0;
+        this.files = new StripedLru<>(capacity, content -> content.length);
+        this.folder = folder == null ? null : Path.of("res").resolve(folder);
+        if(folder != null){
+            try{
+                Files.createDirectories(this.folder);
+            }catch (IOException e){
+                Helper.fail("Cannot create the cache folder \"res/%s\"%n", folder);
+            }
+        }
+    }
+
+    // ==================================================================================
+    // ================================== CACHE API =====================================
+    // ==================================================================================
+
+    /**
+     * Encode an image as a "Quite Ok Image" file, or return the file of the same image
+     * if it was encoded before (See QOIEncoder.qoiFile(Helper.Image))
+     * @apiNote The returned array is shared with the cache and the other callers : it must not be modified
+     * @param image (Helper.Image) - Image to encode
+     * @return (byte[]) - The "Quite Ok Image" file of the image
+     * @throws AssertionError if the image is null
+     */
+    public byte[] qoiFile(Helper.Image image){
+        assert image != null;
+        long key = hash(image);
+
+        byte[] content = files.get(key);
+        if(content != null && matches(content, image)){
+            hits.increment();
+            return content;
+        }
+
+        content = folder == null ? null : readFile(key);
+        if(content != null && matches(content, image) && complete(content, image)){
+            diskHits.increment();
+        }else{
+            misses.increment();
+            content = QOIEncoder.qoiFile(image);
+            if(folder != null){
+                writeFile(key, content);
+            }
+        }
+        files.put(key, content);
+        return content;
+    }
+
+    /**
+     * Hash the content of an image on 64 bits : its pixels, dimensions, channels and color space
+     * @apiNote The pixels are mixed in 4 independent lanes, so that the hash runs at the speed
+     * of the memory rather than of the chain of multiplications
+     * @param image (Helper.Image) - Image to hash
+     * @return (long) - The hash of the image
+     * @throws AssertionError if the image is null
+     */
+    public static long hash(Helper.Image image){
+        assert image != null;
+        int[][] data = image.data();
+
+        long h0 = PRIME_1 + PRIME_2, h1 = PRIME_2, h2 = 0, h3 = -PRIME_1;
+        for(int[] row : data){
+            int j = 0;
+            for( ; j + 4 <= row.length ; j += 4){
+                h0 = round(h0, row[j] & 0xFFFF_FFFFL);
+                h1 = round(h1, row[j+1] & 0xFFFF_FFFFL);
+                h2 = round(h2, row[j+2] & 0xFFFF_FFFFL);
+                h3 = round(h3, row[j+3] & 0xFFFF_FFFFL);
+            }
+            for( ; j < row.length ; ++j){
+                h0 = round(h0, row[j] & 0xFFFF_FFFFL);
+            }
+        }
+        long h = merge(h0, h1, h2, h3);
+        h = round(h, data.length);
+        h = round(h, data[0].length);
+        h = round(h, image.channels() << 8 | image.color_space());
+        return avalanche(h);
+    }
+
+    /**
+     * @return (long) - Number of images found in memory
+     */
+    public long hits(){
+        return hits.sum();
+    }
+
+    /**
+     * @return (long) - Number of images found in the folder after a miss in memory
+     */
+    public long diskHits(){
+        return diskHits.sum();
+    }
+
+    /**
+     * @return (long) - Number of images encoded
+     */
+    public long misses(){
+        return misses.sum();
+    }
+
+    /**
+     * @return (long) - Number of files evicted from memory
+     */
+    public long evictions(){
+        return files.evictions();
+    }
+
+    /**
+     * @return (long) - Number of bytes of the files in memory
+     */
+    public long bytes(){
+        return files.weight();
+    }
+
+    /**
+     * Evict all the files from memory. The files of the folder are kept
+     */
+    public void clear(){
+        files.clear();
+    }
+
+    // ==================================================================================
+    // ================================ CACHE HELPERS ===================================
+    // ==================================================================================
+
+    /**
+     * Check that a cached file has the header of the image, to catch a collision of the hashes
+     */
+    private static boolean matches(byte[] content, Helper.Image image){
+        int[][] data = image.data();
+        return content.length >= QOISpecification.HEADER_SIZE
+                && QOIDecoder.readInt(content, 4) == data[0].length && QOIDecoder.readInt(content, 8) == data.length
+                && content[12] == image.channels() && content[13] == image.color_space();
+    }
+
+    /**
+     * Check that a file of the folder is complete : its size is possible for the image and
+     * it ends with the "End Of File", to catch a file cut short or overwritten
+     */
+    private static boolean complete(byte[] content, Helper.Image image){
+        int[][] data = image.data();
+        int eof = content.length - QOISpecification.QOI_EOF.length;
+        if(eof < QOISpecification.HEADER_SIZE || content.length > QOIEncoder.maxFileSize(data[0].length, data.length)){
+            return false;
+        }
+        for(int i=0 ; i<QOISpecification.QOI_EOF.length ; ++i){
+            if(content[eof + i] != QOISpecification.QOI_EOF[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read the file of a hash in the folder
+     * @return (byte[]) - The content of the file, or null if there is none or it cannot be read
+     */
+    private byte[] readFile(long key){
+        var path = folder.resolve(name(key));
+        try{
+            return Files.isRegularFile(path) ? Files.readAllBytes(path) : null;
+        }catch (IOException e){
+            return null;
+        }
+    }
+
+    /**
+     * Write the file of a hash in the folder, under a temporary name then renamed at once :
+     * a thread or a process reading the folder sees the whole file or none
+     */
+    private void writeFile(long key, byte[] content){
+        Path temporary = null;
+        try{
+            temporary = Files.createTempFile(folder, name(key), ".tmp");
+            Files.write(temporary, content);
+            Files.move(temporary, folder.resolve(name(key)), StandardCopyOption.ATOMIC_MOVE);
+        }catch (IOException e){
+            try{
+                if(temporary != null) Files.deleteIfExists(temporary);
+            }catch (IOException ignored){}
+            Helper.fail("An error occurred while trying to write to : \"%s\"%n", folder.resolve(name(key)));
+        }
+    }
+
+    private static String name(long key){
+        return String.format("%016x.qoi", key);
+    }
+
+}
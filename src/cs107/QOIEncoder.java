@@ -1,6 +1,7 @@
 package cs107;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.stream.IntStream;
 
 /**
  * "Quite Ok Image" Encoder
@@ -43,6 +44,35 @@ public final class QOIEncoder {
         return(ArrayUtils.concat(header[0], header[1], header[2], header[3], header[4]));
     }
 
+    /**
+     * Write a "Quite Ok Image" header in the given buffer
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param channels (byte) - Number of channels of the image
+     * @param colorSpace (byte) - Color space of the image
+     * @param output (byte[]) - Buffer where to write the header
+     * @param offset (int) - Index in the buffer to start writing from
+     * @return (int) - The number of written bytes
+     * @throws AssertionError if the colorspace or the number of channels is corrupted
+     * or if the header doesn't fit in the buffer
+     */
+    public static int qoiHeader(int width, int height, byte channels, byte colorSpace, byte[] output, int offset){
+        assert width > 0 && height > 0;
+        assert channels == QOISpecification.RGB || channels == QOISpecification.RGBA;
+        assert colorSpace == QOISpecification.sRGB || colorSpace == QOISpecification.ALL;
+        assert output != null && offset >= 0 && offset + QOISpecification.HEADER_SIZE <= output.length;
+
+        long start = QOIStatistics.start();
+        System.arraycopy(QOISpecification.QOI_MAGIC, 0, output, offset, QOISpecification.QOI_MAGIC.length);
+        writeInt(width, output, offset + 4);
+        writeInt(height, output, offset + 8);
+        output[offset + 12] = channels;
+        output[offset + 13] = colorSpace;
+        if(QOIStatistics.ENABLED) QOIStatistics.current().time(QOIStatistics.Phase.HEADER, start);
+
+        return QOISpecification.HEADER_SIZE;
+    }
+
     // ==================================================================================
     // ============================ ATOMIC ENCODING METHODS =============================
     // ==================================================================================
@@ -176,75 +206,182 @@ public final class QOIEncoder {
      */
     public static byte[] encodeData(byte[][] image){
         assert image != null;
-        for(byte[] pixel : image){
-            assert pixel != null && pixel.length == 4;
-        }
 
-        byte[] prev_pixel = QOISpecification.START_PIXEL;
-        byte[][] hash_table = new byte[64][4];
-        int count = 0;
+        var context = QOIEncoderContext.current();
+        int size = context.encodeData(image);
+        byte[] encoding = Arrays.copyOf(context.output(), size);
+        context.trim();
+        return encoding;
+    }
 
-        final int a = QOISpecification.a;
-        final int r = QOISpecification.r;
-        final int g = QOISpecification.g;
-        final int b = QOISpecification.b;
+    /**
+     * Encode the given packed image using the "Quite Ok Image" Protocol
+     * (See handout for more information about the "Quite Ok Image" protocol)
+     * @apiNote Same encoding as encodeData(byte[][]) but each pixel is packed (ARGB) in one integer
+     * @param image (int[]) - Packed pixels to encode
+     * @return (byte[]) - "Quite Ok Image" representation of the image
+     * @throws AssertionError if the image is null
+     */
+    public static byte[] encodeData(int[] image){
+        assert image != null;
 
-        ArrayList<Byte[]> encoding = new ArrayList<Byte[]>();
-        
-        for (int i = 0; i < image.length; i++){
-            byte[] pixel = image[i];
-            
-            if(ArrayUtils.equals(pixel, prev_pixel)){ //*Etape 1
-                count++;
-                if(count >= 62 || i == image.length-1){ //<62 ?
-                    encoding.add(ArrayUtils.cast(qoiOpRun((byte) count)));
-                    prev_pixel = pixel;
-                    count = 0;
-                    continue;
-                }
-            }else{
-                if(count != 0){ //<62 ?
-                    encoding.add(ArrayUtils.cast(qoiOpRun((byte) count)));
-                    count = 0;
-                }
-                if(ArrayUtils.equals(pixel, hash_table[QOISpecification.hash(pixel)])){ //*Etape 2
-                    encoding.add(ArrayUtils.cast(qoiOpIndex(QOISpecification.hash(pixel))));
-                    prev_pixel = pixel;
-                    continue;
-                }else{
-                    hash_table[QOISpecification.hash(pixel)] = pixel;
-                    if(pixel[a] == prev_pixel[a]){ //*Etape 3, 4, 5
-
-                        byte[] diff = new byte[]{(byte) (pixel[r] - prev_pixel[r]), (byte) (pixel[g] - prev_pixel[g]), (byte) (pixel[b] - prev_pixel[b])};
-
-                        if(diff[0] > -3 && diff[0] < 2 && diff[1] > -3 && diff[1] < 2 && diff[2] > -3 && diff[2] < 2){ //*Etape 3
-                            encoding.add(ArrayUtils.cast(qoiOpDiff(diff)));
-                            prev_pixel = pixel;
-                            continue;
-                        }else if((diff[1] > -33 && diff[1] < 32) && ((diff[0] - diff[1]) > -9 && (diff[0] - diff[1]) < 8) && ((diff[2] - diff[1]) > -9 && (diff[2] - diff[1]) < 8)){ //*Etape 4
-                            encoding.add(ArrayUtils.cast(qoiOpLuma(diff)));
-                            prev_pixel = pixel;
-                            continue;
-                        }else{ //*Etape 5
-                            encoding.add(ArrayUtils.cast(qoiOpRGB(pixel)));
-                            prev_pixel = pixel;
-                            continue;
-                        }
-                    }else{ //*Etape 6
-                        encoding.add(ArrayUtils.cast(qoiOpRGBA(pixel)));
-                        prev_pixel = pixel;
-                        continue;
-                        }
-                    }
+        var context = QOIEncoderContext.current();
+        int size = context.encodeData(image);
+        byte[] encoding = Arrays.copyOf(context.output(), size);
+        context.trim();
+        return encoding;
+    }
+
+    /**
+     * Encode the given packed image using the "Quite Ok Image" Protocol
+     * and write the result in the given buffer
+     * @apiNote No memory is allocated, the buffer must be large enough for the
+     * worst case (5 bytes per pixel, see maxFileSize)
+     * @param image (int[]) - Packed pixels to encode
+     * @param output (byte[]) - Buffer where to write the encoding
+     * @param offset (int) - Index in the buffer to start writing from
+     * @return (int) - The number of written bytes
+     * @throws AssertionError if the image or the buffer is null
+     */
+    public static int encodeData(int[] image, byte[] output, int offset){
+        int[] state = QOISpecification.initialState();
+
+        int idx = offset + encodeData(image, 0, image.length, state, output, offset);
+        idx += encodeRun(state, output, idx);
+
+        return idx - offset;
+    }
+
+    /**
+     * Encode a slice of the given packed image using the "Quite Ok Image" Protocol,
+     * starting from the given running state. The state is updated so that
+     * the encoding can be resumed with the next pixels.
+     * @apiNote A run still pending at the end of the slice is kept in the state,
+     * call encodeRun once the last pixel of the image has been encoded.
+     * The buffer must have room for 5 bytes per pixel, plus 1 if a run is pending.
+     * No memory is allocated.
+     * @param image (int[]) - Packed pixels to encode
+     * @param from (int) - Index of the first pixel to encode (inclusive)
+     * @param to (int) - Index of the last pixel to encode (exclusive)
+     * @param state (int[]) - Running state (See QOISpecification.initialState)
+     * @param output (byte[]) - Buffer where to write the encoding
+     * @param offset (int) - Index in the buffer to start writing from
+     * @return (int) - The number of written bytes
+     * @throws AssertionError if one of the arrays is null or the slice is invalid
+     */
+    public static int encodeData(int[] image, int from, int to, int[] state, byte[] output, int offset){
+        assert image != null && output != null;
+        assert state != null && state.length == QOISpecification.STATE_SIZE;
+        assert from >= 0 && from <= to && to <= image.length;
+        // Worst case : one QOI_OP_RGBA per pixel, after the run pending in the state
+        assert offset >= 0 && offset + (to - from) * 5 + (state[QOISpecification.STATE_RUN] != 0 ? 1 : 0) <= output.length;
+
+        long start = QOIStatistics.start();
+        QOIStatistics statistics = QOIStatistics.ENABLED ? QOIStatistics.current() : null;
+        int prev_pixel = state[QOISpecification.STATE_PREVIOUS];
+        int count = state[QOISpecification.STATE_RUN];
+        int idx = offset;
+
+        for (int i = from; i < to; i++){
+            int pixel = image[i];
+
+            if(pixel == prev_pixel){ //*Etape 1
+                // Scan the whole run at once, then write a chunk per 62 pixels
+                int length = runLength(image, i, to);
+                count += length;
+                for(; count >= 62 ; count -= 62){
+                    output[idx++] = (byte) (QOISpecification.QOI_OP_RUN_TAG | 61);
+                    if(QOIStatistics.ENABLED) statistics.encodedRun(62);
                 }
+                i += length - 1;
+                continue;
+            }
+            if(count != 0){
+                output[idx++] = (byte) (QOISpecification.QOI_OP_RUN_TAG | (count-1));
+                if(QOIStatistics.ENABLED) statistics.encodedRun(count);
+                count = 0;
+            }
+
+            if(QOIStatistics.ENABLED) statistics.lookup(state, pixel);
+            int written = encodePixel(pixel, prev_pixel, state, output, idx);
+            if(QOIStatistics.ENABLED) statistics.encoded(output[idx]);
+            idx += written;
+            prev_pixel = pixel;
         }
 
-        byte[][] result = new byte[encoding.size()][];
-        for (int i = 0; i < encoding.size(); i++){
-            result[i] = ArrayUtils.cast(encoding.get(i));
+        state[QOISpecification.STATE_PREVIOUS] = prev_pixel;
+        state[QOISpecification.STATE_RUN] = count;
+        if(QOIStatistics.ENABLED) statistics.time(QOIStatistics.Phase.DATA, start);
+
+        return idx - offset;
+    }
+
+    /**
+     * Write the run still pending in the running state, if any
+     * @param state (int[]) - Running state (See QOISpecification.initialState)
+     * @param output (byte[]) - Buffer where to write the encoding
+     * @param offset (int) - Index in the buffer to start writing from
+     * @return (int) - The number of written bytes (0 or 1)
+     */
+    public static int encodeRun(int[] state, byte[] output, int offset){
+        int count = state[QOISpecification.STATE_RUN];
+        if(count == 0){
+            return 0;
         }
 
-        return ArrayUtils.concat(result);
+        output[offset] = (byte) (QOISpecification.QOI_OP_RUN_TAG | (count-1));
+        state[QOISpecification.STATE_RUN] = 0;
+        if(QOIStatistics.ENABLED) QOIStatistics.current().encodedRun(count);
+
+        return 1;
+    }
+
+    /**
+     * Encode a pixel that differs from the previous one (Etapes 2 to 6)
+     * and update the index of the running state
+     * @param pixel (int) - Packed pixel to encode
+     * @param prev_pixel (int) - Packed previous pixel
+     * @param hash_table (int[]) - Index of the previously seen pixels
+     * @param output (byte[]) - Buffer where to write the encoding
+     * @param idx (int) - Index in the buffer to start writing from
+     * @return (int) - The number of written bytes
+     */
+    static int encodePixel(int pixel, int prev_pixel, int[] hash_table, byte[] output, int idx){
+        int hash = QOISpecification.hash(pixel);
+        if(hash_table[hash] == pixel){ //*Etape 2
+            output[idx] = (byte) (QOISpecification.QOI_OP_INDEX_TAG | hash);
+            return 1;
+        }
+
+        hash_table[hash] = pixel;
+        if((pixel ^ prev_pixel) >>> 24 == 0){ //*Etape 3, 4, 5
+            int dr = (byte) ((pixel >> 16) - (prev_pixel >> 16));
+            int dg = (byte) ((pixel >> 8) - (prev_pixel >> 8));
+            int db = (byte) (pixel - prev_pixel);
+
+            if(dr > -3 && dr < 2 && dg > -3 && dg < 2 && db > -3 && db < 2){ //*Etape 3
+                output[idx] = (byte) (QOISpecification.QOI_OP_DIFF_TAG | (dr+2) << 4 | (dg+2) << 2 | (db+2));
+                return 1;
+            }
+            if(dg > -33 && dg < 32 && (dr - dg) > -9 && (dr - dg) < 8 && (db - dg) > -9 && (db - dg) < 8){ //*Etape 4
+                output[idx] = (byte) (QOISpecification.QOI_OP_LUMA_TAG | (dg+32));
+                output[idx+1] = (byte) ((dr-dg+8) << 4 | (db-dg+8));
+                return 2;
+            }
+            //*Etape 5
+            output[idx] = QOISpecification.QOI_OP_RGB_TAG;
+            output[idx+1] = (byte) (pixel >> 16);
+            output[idx+2] = (byte) (pixel >> 8);
+            output[idx+3] = (byte) pixel;
+            return 4;
+        }
+        //*Etape 6
+        output[idx] = QOISpecification.QOI_OP_RGBA_TAG;
+        output[idx+1] = (byte) (pixel >> 16);
+        output[idx+2] = (byte) (pixel >> 8);
+        output[idx+3] = (byte) pixel;
+        output[idx+4] = (byte) (pixel >> 24);
+        return 5;
     }
 
     /**
@@ -258,13 +395,231 @@ public final class QOIEncoder {
     public static byte[] qoiFile(Helper.Image image){
         assert image != null;
 
-        byte[] header = qoiHeader(image);
+        var context = QOIEncoderContext.current();
+        int size = context.qoiFile(image);
+        byte[] encoding = Arrays.copyOf(context.output(), size);
+        context.trim();
+        return encoding;
+    }
 
-        byte[] data = encodeData(ArrayUtils.imageToChannels(image.data()));
-        
-        byte[] signature = QOISpecification.QOI_EOF;
+    /**
+     * Write the "Quite Ok Image" file of the image in the given buffer.
+     * @apiNote The only allocation is the running state, the buffer can be
+     * reused from one image to the other as long as it is large enough (See maxFileSize)
+     * @param image (Helper.Image) - Image to encode
+     * @param output (byte[]) - Buffer where to write the file
+     * @return (int) - The number of written bytes, i.e. the size of the file
+     * @throws AssertionError if the image or the buffer is null or the buffer is too small
+     */
+    public static int qoiFile(Helper.Image image, byte[] output){
+        return qoiFile(image, output, QOISpecification.initialState());
+    }
+
+    /**
+     * Creates the "Quite Ok Image" file of an image in the given buffer, using the given running state
+     * @param image (Helper.Image) - Image to encode
+     * @param output (byte[]) - Buffer where to write the file, at least maxFileSize bytes
+     * @param state (int[]) - Running state at the start of an image (See QOISpecification.initialState)
+     * @return (int) - Size of the file
+     */
+    static int qoiFile(Helper.Image image, byte[] output, int[] state){
+        assert image != null && output != null;
+        int[][] data = image.data();
+        assert output.length >= maxFileSize(data[0].length, data.length);
+
+        var event = new QOIEvents.Encode();
+        event.begin();
+        int idx = qoiHeader(data[0].length, data.length, image.channels(), image.color_space(), output, 0);
+
+        for(int[] row : data){
+            idx += encodeData(row, 0, row.length, state, output, idx);
+        }
+        idx += encodeRun(state, output, idx);
+
+        System.arraycopy(QOISpecification.QOI_EOF, 0, output, idx, QOISpecification.QOI_EOF.length);
+        int size = idx + QOISpecification.QOI_EOF.length;
+        event.end(null, data[0].length, data.length, image.channels(), 4L * data[0].length * data.length, size);
+
+        return size;
+    }
+
+    /**
+     * Compute the size of the largest "Quite Ok Image" file of an image,
+     * i.e. the header, one QOI_OP_RGBA per pixel and the "End Of File"
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @return (int) - Worst case size of the file
+     * @throws AssertionError if the dimensions are invalid or the file cannot fit in an array
+     */
+    public static int maxFileSize(int width, int height){
+        assert width > 0 && height > 0;
+        long size = QOISpecification.HEADER_SIZE + 5L * width * height + QOISpecification.QOI_EOF.length;
+        assert size <= Integer.MAX_VALUE - 8;
 
-        return ArrayUtils.concat(header,data,signature);
+        return (int) size;
+    }
+
+    // Number of pixels of a run scanned one by one before switching to Arrays.mismatch
+    private static final int RUN_SCAN = 16;
+
+    /**
+     * Length of the run starting at the given pixel, the pixel being equal to the one before it
+     * @apiNote Past the first RUN_SCAN pixels, each pixel is compared with the previous one
+     * using Arrays.mismatch, which the JVM compares many lanes at a time
+     * @param image (int[]) - Packed pixels
+     * @param from (int) - Index of the first pixel of the run
+     * @param to (int) - Index of the last pixel that can be part of the run (exclusive)
+     * @return (int) - The number of pixels of the run, at least 1
+     */
+    private static int runLength(int[] image, int from, int to){
+        // Most runs are short, they are scanned before paying for the call
+        int end = Math.min(to, from + RUN_SCAN);
+        int i = from + 1;
+        while(i < end && image[i] == image[from]){
+            i++;
+        }
+        if(i < end || i == to){
+            return i - from;
+        }
+        int mismatch = Arrays.mismatch(image, i, to, image, i - 1, to - 1);
+        return (mismatch < 0 ? to : i + mismatch) - from;
+    }
+
+    // ==================================================================================
+    // =========================== PARALLEL ENCODING METHODS ============================
+    // ==================================================================================
+
+    /**
+     * Creates the representation in memory of the "Quite Ok Image" file, encoding
+     * segments of the image in parallel on the common ForkJoinPool.
+     * @apiNote The file is exactly the same as the one of qoiFile(Helper.Image) :
+     * the running state at the start of each segment is not guessed but rebuilt from
+     * the pixels before it. Only the pixels that start a new run write in the index,
+     * so the index at a given pixel holds, for each hash, the last such pixel. A first
+     * parallel pass summarizes each segment (last run start per hash, trailing run),
+     * the summaries are chained to get the exact state of each segment, then the
+     * segments are encoded in parallel and concatenated.
+     * @param image (Helper.Image) - Image to encode
+     * @param segments (int) - Number of segments to encode in parallel
+     * @return (byte[]) - Binary representation of the "Quite Ok File" of the image
+     * @throws AssertionError if the image is null or the number of segments is not positive
+     */
+    public static byte[] qoiFile(Helper.Image image, int segments){
+        assert image != null;
+        assert segments > 0;
+
+        var event = new QOIEvents.Encode();
+        event.begin();
+        int[][] data = image.data();
+        int[] pixels = ArrayUtils.imageToPixels(data);
+        int count = Math.min(segments, pixels.length);
+        int[] bounds = new int[count + 1];
+        for(int k=0 ; k<=count ; ++k){
+            bounds[k] = (int) ((long) pixels.length * k / count);
+        }
+
+        // 1. Summary of each segment
+        Segment[] summaries = IntStream.range(0, count).parallel()
+                .mapToObj(k -> summarize(pixels, bounds[k], bounds[k+1]))
+                .toArray(Segment[]::new);
+
+        // 2. Exact running state at the start of each segment
+        int[][] states = new int[count][];
+        states[0] = QOISpecification.initialState();
+        long runLength = 0;
+        for(int k=1 ; k<count ; ++k){
+            Segment previous = summaries[k-1];
+            int[] state = states[k-1].clone();
+            for(int hash=0 ; hash<64 ; ++hash){
+                if((previous.found() >>> hash & 1) != 0){
+                    state[hash] = previous.last()[hash];
+                }
+            }
+            runLength = previous.trailing() == bounds[k] - bounds[k-1] ? runLength + previous.trailing() : previous.trailing();
+            state[QOISpecification.STATE_PREVIOUS] = pixels[bounds[k] - 1];
+            state[QOISpecification.STATE_RUN] = (int) (runLength % 62);
+            states[k] = state;
+        }
+
+        // 3. Encoding of each segment from its state, the states are updated in place
+        byte[][] parts = IntStream.range(0, count).parallel().mapToObj(k -> {
+            byte[] output = new byte[(bounds[k+1] - bounds[k]) * 5 + 1];
+            return Arrays.copyOf(output, encodeData(pixels, bounds[k], bounds[k+1], states[k], output, 0));
+        }).toArray(byte[][]::new);
+
+        // 4. Concatenation, the run pending at the end of the image is written before the EOF
+        long size = QOISpecification.HEADER_SIZE + 1 + QOISpecification.QOI_EOF.length;
+        for(byte[] part : parts){
+            size += part.length;
+        }
+        assert size <= Integer.MAX_VALUE - 8;
+
+        byte[] output = new byte[(int) size];
+        int idx = qoiHeader(data[0].length, data.length, image.channels(), image.color_space(), output, 0);
+        for(byte[] part : parts){
+            System.arraycopy(part, 0, output, idx, part.length);
+            idx += part.length;
+        }
+        idx += encodeRun(states[count - 1], output, idx);
+        System.arraycopy(QOISpecification.QOI_EOF, 0, output, idx, QOISpecification.QOI_EOF.length);
+        int length = idx + QOISpecification.QOI_EOF.length;
+        event.end(null, data[0].length, data.length, image.channels(), 4L * pixels.length, length);
+
+        return Arrays.copyOf(output, length);
+    }
+
+    /**
+     * Summary of a segment of pixels, enough to update a running state over it
+     * @param last (int[]) - For each hash, the last pixel starting a run in the segment
+     * @param found (long) - Bit mask of the hashes that have an entry in last
+     * @param trailing (int) - Number of pixels at the end of the segment equal to the pixel before them
+     */
+    private record Segment(int[] last, long found, int trailing){}
+
+    /**
+     * Summarize a segment of pixels (See Segment)
+     * @param pixels (int[]) - Packed pixels of the image
+     * @param from (int) - Index of the first pixel of the segment (inclusive)
+     * @param to (int) - Index of the last pixel of the segment (exclusive)
+     * @return (Segment) - The summary
+     */
+    private static Segment summarize(int[] pixels, int from, int to){
+        int trailing = 0;
+        for(int i = to - 1; i >= from && pixels[i] == (i == 0 ? QOISpecification.START_PIXEL_ARGB : pixels[i-1]); --i){
+            trailing++;
+        }
+
+        int[] last = new int[64];
+        long found = 0;
+        for(int i = to - 1; i >= from && found != -1L; --i){
+            int pixel = pixels[i];
+            if(pixel != (i == 0 ? QOISpecification.START_PIXEL_ARGB : pixels[i-1])){
+                int hash = QOISpecification.hash(pixel);
+                if((found >>> hash & 1) == 0){
+                    last[hash] = pixel;
+                    found |= 1L << hash;
+                }
+            }
+        }
+
+        return new Segment(last, found, trailing);
+    }
+
+    // ==================================================================================
+    // ================================ WRITING HELPERS =================================
+    // ==================================================================================
+
+    /**
+     * Write an integer in the buffer using the "Big Endian" layout
+     * @param value (int) - The integer
+     * @param output (byte[]) - Buffer where to write the integer
+     * @param offset (int) - Index in the buffer to start writing from
+     */
+    static void writeInt(int value, byte[] output, int offset){
+        output[offset]   = (byte) (value >>> 24);
+        output[offset+1] = (byte) (value >>> 16);
+        output[offset+2] = (byte) (value >>> 8);
+        output[offset+3] = (byte) value;
     }
 
-}
\ No newline at end of file
+}
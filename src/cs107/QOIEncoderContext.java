@@ -0,0 +1,137 @@
+package cs107;
+
+/**
+ * Reusable "Quite Ok Image" encoder. A context owns its running state and a growable
+ * output buffer, reset between two images, so that once the buffer is large enough
+ * encoding an image allocates nothing.
+ * @apiNote A context is not thread-safe : use one context per thread, such as the one
+ * of current(). The output buffer is reused by the next call, copy it to keep the encoding.
+ * The static methods of QOIEncoder are thin wrappers on the context of the current thread,
+ * which keeps its buffers between two calls only up to POOLED_LIMIT bytes : a thread that once
+ * encoded a large image does not hold its buffers forever. A context created by the caller
+ * keeps its buffers whatever their size
+ * @version 1.3
+ * @since 1.3
+ */
+public final class QOIEncoderContext {
+
+    /**
+     * Largest buffer, in bytes, kept by the context of a thread between two calls of the wrappers of QOIEncoder
+     */
+    public static final int POOLED_LIMIT = 1 << 22;
+
+    private static final ThreadLocal<QOIEncoderContext> POOL = ThreadLocal.withInitial(QOIEncoderContext::new);
+
+    private final int[] state = QOISpecification.initialState();
+    private byte[] output = new byte[0];
+    private int[] pixels = new int[0];
+
+    /**
+     * Create a new context, with empty buffers
+     */
+    public QOIEncoderContext(){}
+
+    /**
+     * Context of the current thread, created on the first call
+     * @return (QOIEncoderContext) - The context of the current thread
+     */
+    public static QOIEncoderContext current(){
+        return POOL.get();
+    }
+
+    /**
+     * Buffer holding the last encoding, from index 0 to the size returned by the last call
+     * @return (byte[]) - The output buffer of the context
+     */
+    public byte[] output(){
+        return output;
+    }
+
+    // ==================================================================================
+    // ============================== CONTEXT ENCODING ==================================
+    // ==================================================================================
+
+    /**
+     * Encode the given packed pixels, without header nor "End Of File",
+     * in the output buffer (See QOIEncoder.encodeData(int[]))
+     * @param image (int[]) - Packed (ARGB) pixels to encode
+     * @return (int) - Number of bytes written in the output buffer
+     * @throws AssertionError if the image is null
+     */
+    public int encodeData(int[] image){
+        assert image != null;
+
+        // Worst case : one QOI_OP_RGBA per pixel
+        ensureOutput((long) image.length * 5);
+        QOISpecification.resetState(state);
+        int idx = QOIEncoder.encodeData(image, 0, image.length, state, output, 0);
+        return idx + QOIEncoder.encodeRun(state, output, idx);
+    }
+
+    /**
+     * Encode the given pixels, without header nor "End Of File",
+     * in the output buffer (See QOIEncoder.encodeData(byte[][]))
+     * @apiNote The pixels are packed in a buffer owned by the context
+     * @param image (byte[][]) - Pixels to encode, the channels of each pixel in the RGBA order
+     * @return (int) - Number of bytes written in the output buffer
+     * @throws AssertionError if the image or one of its pixels is null
+     */
+    public int encodeData(byte[][] image){
+        assert image != null;
+
+        if(pixels.length < image.length){
+            pixels = new int[image.length];
+        }
+        for(int i=0 ; i<image.length ; ++i){
+            byte[] pixel = image[i];
+            assert pixel != null && pixel.length == 4;
+            pixels[i] = (pixel[QOISpecification.a] & 0xFF) << 24 | (pixel[QOISpecification.r] & 0xFF) << 16
+                    | (pixel[QOISpecification.g] & 0xFF) << 8 | pixel[QOISpecification.b] & 0xFF;
+        }
+
+        ensureOutput((long) image.length * 5);
+        QOISpecification.resetState(state);
+        int idx = QOIEncoder.encodeData(pixels, 0, image.length, state, output, 0);
+        return idx + QOIEncoder.encodeRun(state, output, idx);
+    }
+
+    /**
+     * Encode an image as a complete "Quite Ok Image" file in the output buffer
+     * (See QOIEncoder.qoiFile(Helper.Image))
+     * @param image (Helper.Image) - Image to encode
+     * @return (int) - Size of the file written in the output buffer
+     * @throws AssertionError if the image is null
+     */
+    public int qoiFile(Helper.Image image){
+        assert image != null;
+
+        ensureOutput(QOIEncoder.maxFileSize(image.data()[0].length, image.data().length));
+        QOISpecification.resetState(state);
+        return QOIEncoder.qoiFile(image, output, state);
+    }
+
+    /**
+     * Drop the buffers larger than POOLED_LIMIT, once their content was copied,
+     * so that the next call allocates them again only if it needs them
+     */
+    void trim(){
+        if(output.length > POOLED_LIMIT){
+            output = new byte[0];
+        }
+        if(4L * pixels.length > POOLED_LIMIT){
+            pixels = new int[0];
+        }
+    }
+
+    /**
+     * Grow the output buffer, if needed, so that it can hold the given number of bytes
+     * @param size (long) - Number of bytes needed
+     */
+    private void ensureOutput(long size){
+        assert size <= Integer.MAX_VALUE - 8;
+        if(output.length < size){
+            output = new byte[(int) Math.min(Integer.MAX_VALUE - 8, Math.max(size, (long) output.length * 3 / 2))];
+        }
+    }
+
+}
@@ -0,0 +1,123 @@
+package cs107;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * "Java Flight Recorder" events of the codec and of the file accesses, so that the
+ * latency of the codec can be correlated with the GC and the I/O in a recording.
+ * Each event carries the duration of the call, the dimensions and channels of the image
+ * (0 when not known) and the number of bytes read and produced.
+ * @apiNote Usage : java -XX:StartFlightRecording=filename=qoi.jfr ... then open the recording
+ * in "JDK Mission Control", the events are in the "cs107" category.
+ * When no recording is running, shouldCommit() is false and the JIT removes the
+ * allocation of the events, so they cost close to nothing
+ * @version 1.3
+ * @since 1.3
+ */
+public final class QOIEvents {
+
+    // Hide default constructor
+    private QOIEvents(){}
+
+    /**
+     * Fields common to all the events
+     */
+    @Category({"cs107", "Quite Ok Image"})
+    public abstract static class CodecEvent extends Event {
+
+        @Label("Path")
+        @Description("File read or written, if any")
+        String path;
+
+        @Label("Width")
+        int width;
+
+        @Label("Height")
+        int height;
+
+        @Label("Channels")
+        byte channels;
+
+        @Label("Input Size")
+        @DataAmount
+        long inputBytes;
+
+        @Label("Output Size")
+        @DataAmount
+        long outputBytes;
+
+        /**
+         * End the event and commit it if it is recorded
+         * @param path (String) - File read or written, or null
+         * @param width (int) - Width of the image, or 0
+         * @param height (int) - Height of the image, or 0
+         * @param channels (byte) - Number of channels of the image, or 0
+         * @param inputBytes (long) - Number of bytes read
+         * @param outputBytes (long) - Number of bytes produced
+         */
+        void end(String path, int width, int height, byte channels, long inputBytes, long outputBytes){
+            if(!shouldCommit()){
+                return;
+            }
+            this.path = path;
+            this.width = width;
+            this.height = height;
+            this.channels = channels;
+            this.inputBytes = inputBytes;
+            this.outputBytes = outputBytes;
+            commit();
+        }
+    }
+
+    /**
+     * Encoding of an image to a "Quite Ok Image" file (See QOIEncoder.qoiFile)
+     */
+    @Name("cs107.Encode")
+    @Label("QOI Encode")
+    @Description("Encoding of an image, from its pixels (4 bytes each) to a \"Quite Ok Image\" file")
+    public static final class Encode extends CodecEvent {}
+
+    /**
+     * Decoding of a "Quite Ok Image" file (See QOIDecoder.decodeQoiFile)
+     */
+    @Name("cs107.Decode")
+    @Label("QOI Decode")
+    @Description("Decoding of a \"Quite Ok Image\" file to its pixels (4 bytes each)")
+    public static final class Decode extends CodecEvent {}
+
+    /**
+     * Reading and decoding of an image file (See Helper.readImage)
+     */
+    @Name("cs107.ImageRead")
+    @Label("Image Read")
+    @Description("Reading of an image file, such as a \"PNG\", to its pixels (4 bytes each)")
+    public static final class ImageRead extends CodecEvent {}
+
+    /**
+     * Encoding and writing of a "PNG" file (See Helper.writeImage)
+     */
+    @Name("cs107.ImageWrite")
+    @Label("Image Write")
+    @Description("Writing of the pixels (4 bytes each) of an image to a \"PNG\" file")
+    public static final class ImageWrite extends CodecEvent {}
+
+    /**
+     * Reading of a binary file (See Helper.read)
+     */
+    @Name("cs107.FileRead")
+    @Label("File Read")
+    public static final class FileRead extends CodecEvent {}
+
+    /**
+     * Writing of a binary file (See Helper.write)
+     */
+    @Name("cs107.FileWrite")
+    @Label("File Write")
+    public static final class FileWrite extends CodecEvent {}
+
+}
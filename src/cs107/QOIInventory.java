@@ -0,0 +1,187 @@
+package cs107;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Stream;
+
+/**
+ * Header-only probe of "Quite Ok Image" files and inventory of a folder.
+ * A probe reads the 14 bytes of the header with a positional read, in a buffer
+ * reused by the thread, and parses them in place : the pixels are never read.
+ * @apiNote Usage as a tool : java cs107.QOIInventory folder [glob] [-t threads] [-o index.tsv].
+ * The index has one line per file : path (relative to the folder), width, height, channels,
+ * color space and size of the file, separated by tabulations. It is written to "res/" (See Helper.write)
+ * @version 1.3
+ * @since 1.3
+ */
+public final class QOIInventory {
+
+    // Header buffer of each thread, reused by all the probes of the thread
+    private static final ThreadLocal<ByteBuffer> HEADER = ThreadLocal.withInitial(() -> ByteBuffer.allocate(QOISpecification.HEADER_SIZE));
+
+    // Hide default constructor
+    private QOIInventory(){}
+
+    // ==================================================================================
+    // ================================ INVENTORY TOOL ==================================
+    // ==================================================================================
+
+    /**
+     * Main entry point of the inventory
+     * @param args (String[]) - Arguments passed to the program via the command line
+     */
+    public static void main(String[] args){
+        String folder = null;
+        var pattern = "**.qoi";
+        // Probing is bound by the latency of the disk, not by the cores
+        var threads = 4 * Runtime.getRuntime().availableProcessors();
+        String output = null;
+        for(var i = 0; i < args.length; ++i){
+            switch (args[i]){
+                case "-t" -> threads = Integer.parseInt(args[++i]);
+                case "-o" -> output = args[++i];
+                default -> {
+                    if(folder == null) folder = args[i];
+                    else pattern = args[i];
+                }
+            }
+        }
+        if(folder == null){
+            System.err.println("Usage : java cs107.QOIInventory folder [glob] [-t threads] [-o index.tsv]");
+            return;
+        }
+
+        var start = System.nanoTime();
+        var root = Path.of(folder);
+        var entries = inventory(root, pattern, threads);
+        var nanos = System.nanoTime() - start;
+
+        var index = new StringBuilder();
+        for(var entry : entries)
+            index.append(entry.line(root)).append('\n');
+        if(output != null)
+            Helper.write(output, index.toString().getBytes(StandardCharsets.UTF_8));
+        else
+            System.out.print(index);
+        System.err.printf("%d files probed in %.1f ms (%.0f files/s)%n", entries.size(), nanos / 1e6, entries.size() * 1e9 / Math.max(nanos, 1));
+    }
+
+    // ==================================================================================
+    // ================================== PROBE API =====================================
+    // ==================================================================================
+
+    /**
+     * Information of a "Quite Ok Image" file, read from its header
+     * @param path (Path) - Path of the file
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param channels (byte) - Number of channels of the image
+     * @param colorSpace (byte) - Color space of the image
+     * @param size (long) - Size of the file, in bytes
+     */
+    public record Entry(Path path, int width, int height, byte channels, byte colorSpace, long size){
+
+        /**
+         * @return (long) - Number of pixels of the image
+         */
+        public long pixels(){
+            return (long) width * height;
+        }
+
+        /**
+         * Format the entry as a line of the index
+         * @param root (Path) - Folder the path is relative to in the index
+         * @return (String) - The line, without the line separator
+         */
+        public String line(Path root){
+            return root.relativize(path) + "\t" + width + '\t' + height + '\t' + channels + '\t' + colorSpace + '\t' + size;
+        }
+    }
+
+    /**
+     * Read the header of a file, without reading the pixels
+     * @apiNote Unlike QOIDecoder.decodeHeader, an invalid header is not an assertion
+     * but a normal result : any file can be probed, and an image without pixels is not an image. A file that cannot be read (removed
+     * since it was listed, no permission, ...) is left out as well, so that an inventory goes on
+     * @param path (Path) - Path of the file to probe
+     * @return (Entry) - Information of the file, or null if it is not a readable "Quite Ok Image" file
+     * @throws AssertionError if the path is null
+     */
+    public static Entry probe(Path path){
+        assert path != null;
+
+        try(var channel = FileChannel.open(path, StandardOpenOption.READ)){
+            var header = HEADER.get().clear();
+            while(header.hasRemaining()){
+                if(channel.read(header, header.position()) < 0)
+                    break;
+            }
+            if(header.hasRemaining())
+                return null;
+
+            for(var i = 0; i < QOISpecification.QOI_MAGIC.length; ++i){
+                if(header.get(i) != QOISpecification.QOI_MAGIC[i])
+                    return null;
+            }
+            var channels = header.get(12);
+            var colorSpace = header.get(13);
+            if(channels != QOISpecification.RGB && channels != QOISpecification.RGBA)
+                return null;
+            if(colorSpace != QOISpecification.sRGB && colorSpace != QOISpecification.ALL)
+                return null;
+            if(header.getInt(4) <= 0 || header.getInt(8) <= 0)
+                return null;
+
+            return new Entry(path, header.getInt(4), header.getInt(8), channels, colorSpace, channel.size());
+        }catch (IOException e){
+            return null;
+        }
+    }
+
+    /**
+     * Probe, in parallel, all the files of a folder (and its sub-folders) matching the pattern
+     * @apiNote The files that are not "Quite Ok Image" files are left out of the inventory
+     * @param root (Path) - Folder to scan
+     * @param pattern (String) - Glob pattern of the files to probe, relative to the folder
+     * @param threads (int) - Number of files probed at the same time
+     * @return (List) - The entries, sorted by path
+     * @throws AssertionError if one of the arguments is null or the number of threads is not positive
+     */
+    public static List<Entry> inventory(Path root, String pattern, int threads){
+        assert root != null && pattern != null;
+        assert threads > 0;
+
+        var matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        var pool = new ForkJoinPool(threads);
+        try(Stream<Path> walk = Files.walk(root)){
+            // A parallel stream started from a task runs on the pool of the task
+            return pool.submit(() -> walk.parallel()
+                    .filter(path -> matcher.matches(root.relativize(path)) && Files.isRegularFile(path))
+                    .map(QOIInventory::probe)
+                    .filter(Objects::nonNull)
+                    .sorted(Comparator.comparing(Entry::path))
+                    .toList()).get();
+        }catch (IOException e){
+            return Helper.fail("Cannot list the files of '%s'", root);
+        }catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            return Helper.fail("The inventory of \"%s\" was interrupted%n", root);
+        }catch (ExecutionException e){
+            return Helper.fail("The inventory of \"%s\" failed : %s%n", root, e.getCause());
+        }finally{
+            pool.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,115 @@
+package cs107;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import static cs107.Helper.Image;
+
+/**
+ * "Quite Ok Image" Parallel Container Decoder.
+ * Each strip is an independent "Quite Ok Image" file, so the strips are decoded
+ * in parallel on the common ForkJoinPool, directly in the pixels of the image.
+ * (See QOISpecification.QOIP_MAGIC for the layout of the container)
+ * @version 1.3
+ * @since 1.3
+ */
+public final class QOIPDecoder {
+
+    // Hide default constructor
+    private QOIPDecoder(){}
+
+    // ==================================================================================
+    // =========================== CONTAINER HEADER =====================================
+    // ==================================================================================
+
+    /**
+     * Extract useful information from the header of a parallel container
+     * @param content (byte[]) - Content of the container
+     * @return (int[]) - Array such as its content is {width, height, channels, color space, strip height, strip count}
+     * @throws AssertionError if the content is null or the header is corrupted
+     */
+    public static int[] decodeHeader(byte[] content){
+        assert content != null;
+        assert content.length >= QOISpecification.QOIP_HEADER_SIZE;
+        assert Arrays.equals(content, 0, QOISpecification.QOIP_MAGIC.length,
+                QOISpecification.QOIP_MAGIC, 0, QOISpecification.QOIP_MAGIC.length);
+        assert content[12] == QOISpecification.RGB || content[12] == QOISpecification.RGBA;
+        assert content[13] == QOISpecification.sRGB || content[13] == QOISpecification.ALL;
+
+        var input = ByteBuffer.wrap(content);
+        int[] decoded = new int[]{
+                input.getInt(4),
+                input.getInt(8),
+                content[12],
+                content[13],
+                input.getInt(QOISpecification.HEADER_SIZE),
+                input.getInt(QOISpecification.HEADER_SIZE + 4)
+        };
+        assert decoded[4] > 0 && decoded[5] == (decoded[1] + decoded[4] - 1) / decoded[4];
+
+        return decoded;
+    }
+
+    /**
+     * Extract one strip of the container
+     * @param content (byte[]) - Content of the container
+     * @param index (int) - Index of the strip
+     * @return (byte[]) - The strip, a complete "Quite Ok Image" file
+     * @throws AssertionError if the content is null or the index is invalid
+     */
+    public static byte[] strip(byte[] content, int index){
+        int[] header = decodeHeader(content);
+        assert index >= 0 && index < header[5];
+
+        var input = ByteBuffer.wrap(content);
+        int start = input.getInt(QOISpecification.QOIP_HEADER_SIZE + index * 4);
+        int end = input.getInt(QOISpecification.QOIP_HEADER_SIZE + (index + 1) * 4);
+
+        return Arrays.copyOfRange(content, start, end);
+    }
+
+    // ==================================================================================
+    // ========================= GLOBAL DECODING METHODS ================================
+    // ==================================================================================
+
+    /**
+     * Decode a parallel container
+     * @apiNote The header of each strip is checked in place and its rows are decoded directly
+     * in the rows of the image : only the image is allocated
+     * @param content (byte[]) - Content of the container
+     * @return (Image) - Decoded image
+     * @throws AssertionError if the content is null or corrupted
+     */
+    public static Image decodeQoipFile(byte[] content){
+        int[] header = decodeHeader(content);
+        int width = header[0];
+        int height = header[1];
+        int stripHeight = header[4];
+
+        int[][] data = new int[height][width];
+        IntStream.range(0, header[5]).parallel().forEach(i -> {
+            int offset = QOIDecoder.readInt(content, QOISpecification.QOIP_HEADER_SIZE + i * 4);
+            int end = QOIDecoder.readInt(content, QOISpecification.QOIP_HEADER_SIZE + (i + 1) * 4);
+            int from = i * stripHeight;
+            int to = Math.min(height, from + stripHeight);
+
+            assert offset >= 0 && offset + QOISpecification.HEADER_SIZE <= end && end <= content.length;
+            assert Arrays.equals(content, offset, offset + QOISpecification.QOI_MAGIC.length,
+                    QOISpecification.QOI_MAGIC, 0, QOISpecification.QOI_MAGIC.length);
+            assert QOIDecoder.readInt(content, offset + 4) == width && QOIDecoder.readInt(content, offset + 8) == to - from;
+            assert content[offset + 12] == header[2] && content[offset + 13] == header[3];
+
+            // A run can go on over the next row : the running state is kept from row to row
+            int[] state = QOISpecification.initialState();
+            int idx = offset + QOISpecification.HEADER_SIZE;
+            for(int row = from ; row < to ; ++row){
+                idx += QOIDecoder.decodeData(content, idx, state, data[row], 0, width);
+            }
+            assert idx + QOISpecification.QOI_EOF.length == end;
+        });
+
+        return Helper.generateImage(data, (byte) header[2], (byte) header[3]);
+    }
+
+}
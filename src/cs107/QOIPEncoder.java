@@ -0,0 +1,100 @@
+package cs107;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * "Quite Ok Image" Parallel Container Encoder.
+ * The image is cut in horizontal strips, each strip is encoded as an independent
+ * "Quite Ok Image" file (with its own running state) and the strips are encoded
+ * in parallel on the common ForkJoinPool.
+ * (See QOISpecification.QOIP_MAGIC for the layout of the container)
+ * @version 1.3
+ * @since 1.3
+ */
+public final class QOIPEncoder {
+
+    /**
+     * Minimal number of rows of a strip, smaller strips cost more in headers than they save in time
+     */
+    public static final int MIN_STRIP_HEIGHT = 16;
+
+    // Hide default constructor
+    private QOIPEncoder(){}
+
+    // ==================================================================================
+    // ============================ GLOBAL ENCODING METHODS =============================
+    // ==================================================================================
+
+    /**
+     * Encode the image in a parallel container, with a strip height chosen to
+     * give a few strips to each available core
+     * @param image (Helper.Image) - Image to encode
+     * @return (byte[]) - Binary representation of the container
+     * @throws AssertionError if the image is null
+     */
+    public static byte[] qoipFile(Helper.Image image){
+        assert image != null;
+
+        return qoipFile(image, stripHeight(image.data().length, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * Encode the image in a parallel container
+     * @param image (Helper.Image) - Image to encode
+     * @param stripHeight (int) - Number of rows of each strip (the last one can be shorter)
+     * @return (byte[]) - Binary representation of the container
+     * @throws AssertionError if the image is null or the strip height is not positive
+     */
+    public static byte[] qoipFile(Helper.Image image, int stripHeight){
+        assert image != null;
+        assert stripHeight > 0;
+
+        int[][] data = image.data();
+        int height = data.length;
+        int width = data[0].length;
+        int count = (height + stripHeight - 1) / stripHeight;
+
+        byte[][] strips = IntStream.range(0, count).parallel().mapToObj(i -> {
+            var rows = Arrays.copyOfRange(data, i * stripHeight, Math.min(height, (i + 1) * stripHeight));
+            return QOIEncoder.qoiFile(Helper.generateImage(rows, image.channels(), image.color_space()));
+        }).toArray(byte[][]::new);
+
+        long size = QOISpecification.QOIP_HEADER_SIZE + (count + 1) * 4L;
+        for(byte[] strip : strips){
+            size += strip.length;
+        }
+        assert size <= Integer.MAX_VALUE - 8;
+
+        byte[] output = new byte[(int) size];
+        // Same layout as a "Quite Ok Image" header, only the magic number differs
+        QOIEncoder.qoiHeader(width, height, image.channels(), image.color_space(), output, 0);
+        System.arraycopy(QOISpecification.QOIP_MAGIC, 0, output, 0, QOISpecification.QOIP_MAGIC.length);
+        QOIEncoder.writeInt(stripHeight, output, QOISpecification.HEADER_SIZE);
+        QOIEncoder.writeInt(count, output, QOISpecification.HEADER_SIZE + 4);
+
+        int offset = QOISpecification.QOIP_HEADER_SIZE + (count + 1) * 4;
+        for(int i=0 ; i<count ; ++i){
+            QOIEncoder.writeInt(offset, output, QOISpecification.QOIP_HEADER_SIZE + i * 4);
+            System.arraycopy(strips[i], 0, output, offset, strips[i].length);
+            offset += strips[i].length;
+        }
+        QOIEncoder.writeInt(offset, output, QOISpecification.QOIP_HEADER_SIZE + count * 4);
+
+        return output;
+    }
+
+    /**
+     * Choose the number of rows of the strips so that each core gets about 4 strips
+     * @param height (int) - Height of the image
+     * @param cores (int) - Number of cores
+     * @return (int) - Number of rows of each strip
+     */
+    public static int stripHeight(int height, int cores){
+        assert height > 0 && cores > 0;
+
+        int strips = 4 * cores;
+        return Math.max(MIN_STRIP_HEIGHT, (height + strips - 1) / strips);
+    }
+
+}
@@ -0,0 +1,381 @@
+package cs107;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pipelined converter between "PNG" and "Quite Ok Image" files. The conversion of
+ * Main.pngToQoi and Main.qoiToPng is split in three stages, each with its own threads :
+ * the reader loads the files, the codec encodes or decodes them and the writer stores
+ * the results, so that the disk and the CPU work at the same time.
+ * The stages are connected by bounded queues : a stage that runs ahead waits for the
+ * next one, so the number of images held in memory never exceeds the threads and the
+ * queues, whatever the number of files.
+ * Each stage reports its utilization : the time its threads spent working, waiting for an
+ * input (the previous stage is slower) and waiting for room in its output (the next stage is slower).
+ * The stage with the highest utilization is the bottleneck.
+ * @apiNote Usage : java cs107.QOIPipeline (encode|decode) input_folder output_folder [glob ...]
+ * [-r readers] [-c codecs] [-w writers] [-q capacity]. The folders and the patterns are the
+ * ones of QOIBatch, by default one reader, one writer and a codec per core
+ * @version 1.3
+ * @since 1.3
+ */
+public final class QOIPipeline {
+
+    /**
+     * Default number of images waiting between two stages
+     */
+    public static final int DEFAULT_CAPACITY = 4;
+
+    // Marks the end of the files, forwarded from stage to stage
+    private static final Item END = new Item(-1, null, null, null);
+
+    // Hide default constructor
+    private QOIPipeline(){}
+
+    // ==================================================================================
+    // ================================= PIPELINE TOOL ==================================
+    // ==================================================================================
+
+    /**
+     * Main entry point of the pipelined converter
+     * @param args (String[]) - Arguments passed to the program via the command line
+     */
+    public static void main(String[] args){
+        var positional = new ArrayList<String>();
+        var readers = 1;
+        var codecs = Runtime.getRuntime().availableProcessors();
+        var writers = 1;
+        var capacity = DEFAULT_CAPACITY;
+        for(var i = 0; i < args.length; ++i){
+            switch (args[i]){
+                case "-r" -> readers = Integer.parseInt(args[++i]);
+                case "-c" -> codecs = Integer.parseInt(args[++i]);
+                case "-w" -> writers = Integer.parseInt(args[++i]);
+                case "-q" -> capacity = Integer.parseInt(args[++i]);
+                default -> positional.add(args[i]);
+            }
+        }
+        if(positional.size() < 3 || !(positional.get(0).equals("encode") || positional.get(0).equals("decode"))){
+            System.err.println("Usage : java cs107.QOIPipeline (encode|decode) input_folder output_folder [glob ...] [-r readers] [-c codecs] [-w writers] [-q capacity]");
+            return;
+        }
+
+        var encode = positional.get(0).equals("encode");
+        var patterns = positional.size() > 3 ? positional.subList(3, positional.size()) : List.of(encode ? "**.png" : "**.qoi");
+        var report = convert(encode, positional.get(1), positional.get(2), patterns, readers, codecs, writers, capacity);
+
+        long pixels = 0, png = 0, qoi = 0;
+        var failed = 0;
+        for(var result : report.results()){
+            if(result.failure() != null){
+                failed++;
+                System.out.printf("%-40s FAILED : %s%n", result.file(), result.failure());
+                continue;
+            }
+            pixels += result.pixels();
+            png += result.png();
+            qoi += result.qoi();
+            System.out.printf("%-40s %10d pixels %10.1f ms %10.1f MB/s %8.1f%%%n",
+                    result.file(), result.pixels(), result.nanos() / 1e6, result.megabytesPerSecond(), result.ratio());
+        }
+        System.out.printf("%d files converted (%d failed), %d pixels in %.1f ms : %.1f MB/s, %.0f pixels/s, ratio %.1f%%%n",
+                report.results().size() - failed, failed, pixels, report.nanos() / 1e6,
+                pixels * 4 * 1e3 / Math.max(report.nanos(), 1), pixels * 1e9 / Math.max(report.nanos(), 1),
+                qoi == 0 ? 0 : Main.ratio((int) Math.min(png, Integer.MAX_VALUE), (int) Math.min(qoi, Integer.MAX_VALUE)));
+
+        System.out.printf("%-8s %8s %8s %12s %12s %12s %12s%n", "stage", "threads", "files", "busy ms", "starved ms", "blocked ms", "utilization");
+        for(var stage : report.stages()){
+            System.out.printf("%-8s %8d %8d %12.1f %12.1f %12.1f %11.1f%%%n", stage.name(), stage.threads(), stage.items(),
+                    stage.busyNanos() / 1e6, stage.starvedNanos() / 1e6, stage.blockedNanos() / 1e6, 100 * stage.utilization());
+        }
+        if(QOIStatistics.ENABLED)
+            System.out.print(QOIStatistics.snapshot().report());
+    }
+
+    // ==================================================================================
+    // ================================= PIPELINE API ===================================
+    // ==================================================================================
+
+    /**
+     * Activity of one stage of the pipeline, summed over its threads
+     * @param name (String) - Name of the stage : "read", "encode", "decode" or "write"
+     * @param threads (int) - Number of threads of the stage
+     * @param items (long) - Number of files handled by the stage, failed files included
+     * @param busyNanos (long) - Time spent working on the files
+     * @param starvedNanos (long) - Time spent waiting for a file from the previous stage
+     * @param blockedNanos (long) - Time spent waiting for room in the queue of the next stage
+     * @param wallNanos (long) - Duration of the whole conversion
+     */
+    public record Stage(String name, int threads, long items, long busyNanos, long starvedNanos, long blockedNanos, long wallNanos){
+
+        /**
+         * @return (double) - Fraction of the time of the threads of the stage spent working, from 0 to 1
+         */
+        public double utilization(){
+            return wallNanos == 0 ? 0 : (double) busyNanos / ((long) threads * wallNanos);
+        }
+    }
+
+    /**
+     * Outcome of a conversion
+     * @param results (List) - The result of each file, in the order of the files.
+     *                The duration of a file goes from its reading to its writing, queues included
+     * @param stages (List) - The activity of the reader, the codec and the writer, in this order
+     * @param nanos (long) - Duration of the whole conversion
+     */
+    public record Report(List<QOIBatch.Result> results, List<Stage> stages, long nanos){}
+
+    /**
+     * Convert all the files of a folder matching the patterns, through the three stages
+     * @param encode (boolean) - true to convert "PNG" files to "QOI", false for the opposite
+     * @param input (String) - Folder containing the files to convert
+     * @param output (String) - Folder, in "res/", where to write the converted files
+     * @param patterns (List) - Glob patterns of the files to convert, relative to the input folder
+     * @param readers (int) - Number of threads reading the files
+     * @param codecs (int) - Number of threads encoding or decoding the images
+     * @param writers (int) - Number of threads writing the converted files
+     * @param capacity (int) - Number of images waiting between two stages
+     * @return (Report) - The results of the files and the activity of the stages
+     * @throws AssertionError if one of the arguments is null or one of the numbers is not positive
+     */
+    public static Report convert(boolean encode, String input, String output, List<String> patterns,
+                                 int readers, int codecs, int writers, int capacity){
+        assert input != null && output != null && patterns != null;
+        assert readers > 0 && codecs > 0 && writers > 0 && capacity > 0;
+
+        var root = Path.of(input);
+        var files = QOIBatch.list(root, patterns);
+        var results = new QOIBatch.Result[files.size()];
+
+        var write = new Worker("write", writers, new ArrayBlockingQueue<>(capacity), null,
+                encode ? QOIPipeline::writeQoi : QOIPipeline::writePng);
+        var codec = new Worker(encode ? "encode" : "decode", codecs, new ArrayBlockingQueue<>(capacity), write.input,
+                encode ? QOIPipeline::encode : QOIPipeline::decode);
+        var read = new Worker("read", readers, new ArrayBlockingQueue<>(capacity), codec.input,
+                encode ? QOIPipeline::readPng : QOIPipeline::readQoi);
+        var workers = List.of(read, codec, write);
+
+        // One more thread feeds the reader, so that this thread only waits for the tasks
+        var pool = Executors.newFixedThreadPool(1 + readers + codecs + writers);
+        var tasks = new ExecutorCompletionService<Void>(pool);
+        var start = System.nanoTime();
+        try{
+            // Waits when the reader falls behind, so that the files are listed but never loaded ahead
+            tasks.submit(() -> {
+                for(var i = 0; i < files.size(); ++i){
+                    var name = root.relativize(files.get(i)).toString();
+                    var target = Path.of(output, name.substring(0, name.lastIndexOf('.') + 1) + (encode ? "qoi" : "png")).toString();
+                    read.input.put(new Item(i, name, files.get(i), target));
+                }
+                read.input.put(END);
+                return null;
+            });
+            for(var worker : workers){
+                for(var i = 0; i < worker.threads; ++i){
+                    tasks.submit(() -> {
+                        worker.run(start, results);
+                        return null;
+                    });
+                }
+            }
+
+            // In the order of completion : the first task that fails cancels the others
+            for(var i = 0; i < 1 + readers + codecs + writers; ++i){
+                tasks.take().get();
+            }
+        }catch (InterruptedException e){
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+            return Helper.fail("The conversion of \"%s\" was interrupted%n", input);
+        }catch (ExecutionException e){
+            pool.shutdownNow();
+            return Helper.fail("The conversion of \"%s\" failed : %s%n", input, e.getCause());
+        }finally{
+            QOIBatch.shutdown(pool);
+        }
+        var nanos = System.nanoTime() - start;
+
+        var stages = new ArrayList<Stage>(workers.size());
+        for(var worker : workers){
+            stages.add(new Stage(worker.name, worker.threads, worker.items.sum(), worker.busy.sum(),
+                    worker.starved.sum(), worker.blocked.sum(), nanos));
+        }
+        return new Report(Arrays.asList(results), stages, nanos);
+    }
+
+    // ==================================================================================
+    // ================================ PIPELINE STAGES =================================
+    // ==================================================================================
+
+    private static void readPng(Item item) throws IOException {
+        item.png = Files.size(item.file);
+        item.image = Helper.readImage(item.file.toString());
+        item.pixels = (long) item.image.data().length * item.image.data()[0].length;
+    }
+
+    private static void encode(Item item){
+        item.content = QOIEncoder.qoiFile(item.image);
+        item.qoi = item.content.length;
+        item.image = null;
+    }
+
+    private static void writeQoi(Item item) throws IOException {
+        Files.createDirectories(Path.of("res", item.target).getParent());
+        Helper.write(item.target, item.content);
+        item.content = null;
+    }
+
+    private static void readQoi(Item item){
+        // Read on the heap rather than mapped : a mapping would move the disk accesses to the codec
+        item.content = Helper.read(item.file.toString());
+        item.qoi = item.content.length;
+    }
+
+    private static void decode(Item item){
+        item.image = QOIDecoder.decodeQoiFile(item.content);
+        item.pixels = (long) item.image.data().length * item.image.data()[0].length;
+        item.content = null;
+    }
+
+    private static void writePng(Item item) throws IOException {
+        Files.createDirectories(Path.of("res", item.target).getParent());
+        Helper.writeImage(item.target, item.image);
+        item.png = Files.size(Path.of("res", item.target));
+        item.image = null;
+    }
+
+    // ==================================================================================
+    // ================================ PIPELINE HELPERS ================================
+    // ==================================================================================
+
+    /**
+     * Work done by a stage on one file
+     */
+    @FunctionalInterface
+    private interface Step {
+        void apply(Item item) throws IOException;
+    }
+
+    /**
+     * A file going through the stages, with what the stages produced so far
+     */
+    private static final class Item {
+
+        private final int index;
+        private final String name;
+        private final Path file;
+        private final String target;
+
+        private Helper.Image image;
+        private byte[] content;
+        private long pixels;
+        private long png;
+        private long qoi;
+        private long begin;
+        private String failure;
+
+        private Item(int index, String name, Path file, String target){
+            this.index = index;
+            this.name = name;
+            this.file = file;
+            this.target = target;
+        }
+    }
+
+    /**
+     * The threads of a stage, taking the files from their queue and handing them to the next stage.
+     * A file that failed in a previous stage is only forwarded. An error other than an assertion
+     * (such as an OutOfMemoryError) ends the thread, which still counts as done for the end of the files
+     */
+    private static final class Worker {
+
+        private final String name;
+        private final int threads;
+        private final BlockingQueue<Item> input;
+        private final BlockingQueue<Item> output;
+        private final Step step;
+
+        private final AtomicInteger running;
+        private final LongAdder items = new LongAdder();
+        private final LongAdder busy = new LongAdder();
+        private final LongAdder starved = new LongAdder();
+        private final LongAdder blocked = new LongAdder();
+
+        private Worker(String name, int threads, BlockingQueue<Item> input, BlockingQueue<Item> output, Step step){
+            this.name = name;
+            this.threads = threads;
+            this.input = input;
+            this.output = output;
+            this.step = step;
+            this.running = new AtomicInteger(threads);
+        }
+
+        /**
+         * Handle the files until the end of the files, then forward the end once all the threads of the stage are done
+         * @param start (long) - Start of the conversion
+         * @param results (QOIBatch.Result[]) - Where the last stage stores the result of each file
+         */
+        private void run(long start, QOIBatch.Result[] results) throws InterruptedException {
+            var cancelled = false;
+            try{
+                while(true){
+                    var waiting = System.nanoTime();
+                    var item = input.take();
+                    var begin = System.nanoTime();
+                    starved.add(begin - waiting);
+
+                    if(item == END){
+                        // Leave the end for the other threads of the stage, the last one forwards it
+                        input.put(END);
+                        return;
+                    }
+
+                    if(item.begin == 0){
+                        item.begin = begin;
+                    }
+                    if(item.failure == null){
+                        try{
+                            step.apply(item);
+                        }catch (IOException | RuntimeException | AssertionError e){
+                            item.failure = name + " : " + String.valueOf(e.getMessage()).trim();
+                            item.image = null;
+                            item.content = null;
+                        }
+                    }
+                    var end = System.nanoTime();
+                    busy.add(end - begin);
+                    items.increment();
+
+                    if(output == null){
+                        results[item.index] = new QOIBatch.Result(item.name, item.pixels, item.png, item.qoi,
+                                end - item.begin, end - start, item.failure);
+                    }else{
+                        output.put(item);
+                        blocked.add(System.nanoTime() - end);
+                    }
+                }
+            }catch (InterruptedException e){
+                cancelled = true;
+                throw e;
+            }finally{
+                // Also when the thread dies of an error, so that the next stages do not wait forever
+                if(running.decrementAndGet() == 0 && output != null && !cancelled){
+                    output.put(END);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+package cs107;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Streaming "Quite Ok Image" Decoder.
+ * The header is read when the reader is created, then the image is decoded
+ * one row at a time. The running state is carried from one row to the other
+ * (a run can span several rows) and the input is read through a buffer
+ * that only depends on the width of the image.
+ * @version 1.3
+ * @since 1.3
+ */
+public final class QOIReader implements Closeable {
+
+    /**
+     * Minimal size of the buffer used to read from the input stream
+     */
+    public static final int BUFFER_SIZE = 8192;
+
+    private final InputStream input;
+    private final byte[] buffer;
+    private final int[] state = QOISpecification.initialState();
+    private final int[] header;
+    private final int[] row;
+
+    private int position;
+    private int limit;
+    private int rows;
+
+    /**
+     * Create a new reader and read the "Quite Ok Image" header
+     * @param input (InputStream) - Stream to read the file from, closed with the reader
+     * @throws IOException if the stream cannot be read or ends before the header
+     * @throws AssertionError if the input is null or the header is corrupted
+     */
+    public QOIReader(InputStream input) throws IOException {
+        assert input != null;
+
+        this.input = input;
+        byte[] bytes = input.readNBytes(QOISpecification.HEADER_SIZE);
+        if(bytes.length < QOISpecification.HEADER_SIZE){
+            throw new EOFException("The stream ends before the end of the header");
+        }
+        this.header = QOIDecoder.decodeHeader(bytes);
+        // Worst case for a row : one QOI_OP_RGBA (5 bytes) per pixel
+        this.buffer = new byte[Math.max(BUFFER_SIZE, 5 * header[0] + QOISpecification.QOI_EOF.length)];
+        this.row = new int[header[0]];
+    }
+
+    /**
+     * @return (int) - Width of the image
+     */
+    public int width(){
+        return header[0];
+    }
+
+    /**
+     * @return (int) - Height of the image
+     */
+    public int height(){
+        return header[1];
+    }
+
+    /**
+     * @return (byte) - Number of channels of the image
+     */
+    public byte channels(){
+        return (byte) header[2];
+    }
+
+    /**
+     * @return (byte) - Color space of the image
+     */
+    public byte colorSpace(){
+        return (byte) header[3];
+    }
+
+    /**
+     * @return (int) - Number of rows decoded so far
+     */
+    public int rows(){
+        return rows;
+    }
+
+    /**
+     * Decode the next row of the image in a buffer owned by the reader
+     * @apiNote The returned buffer is reused by the next call, copy it to keep the row
+     * @return (int[]) - The packed (ARGB) pixels of the row or null if all the rows were decoded
+     * @throws IOException if the stream cannot be read or ends before the end of the image
+     */
+    public int[] nextRow() throws IOException {
+        return readRow(row) ? row : null;
+    }
+
+    /**
+     * Decode the next row of the image in the given buffer
+     * @param destination (int[]) - Buffer where to store the packed (ARGB) pixels, at least as long as the width
+     * @return (boolean) - true if a row was decoded, false if all the rows were already decoded
+     * @throws IOException if the stream cannot be read or ends before the end of the image
+     * @throws AssertionError if the buffer is null or too small, or the "End Of File" is corrupted
+     */
+    public boolean readRow(int[] destination) throws IOException {
+        assert destination != null && destination.length >= width();
+
+        if(rows == height()){
+            return false;
+        }
+
+        fill(5 * width());
+        position += QOIDecoder.decodeData(buffer, position, state, destination, 0, width());
+        if(position > limit){
+            throw new EOFException("The stream ends before the end of the image");
+        }
+        rows++;
+
+        if(rows == height()){
+            fill(QOISpecification.QOI_EOF.length);
+            if(limit - position < QOISpecification.QOI_EOF.length){
+                throw new EOFException("The stream ends before the \"End Of File\"");
+            }
+            assert Arrays.equals(buffer, position, position + QOISpecification.QOI_EOF.length,
+                    QOISpecification.QOI_EOF, 0, QOISpecification.QOI_EOF.length);
+            position += QOISpecification.QOI_EOF.length;
+        }
+
+        return true;
+    }
+
+    /**
+     * Close the input stream
+     * @throws IOException if the stream cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+
+    /**
+     * Make sure that at least the given number of bytes is buffered,
+     * unless the stream ends before
+     * @param needed (int) - Number of bytes needed
+     * @throws IOException if the stream cannot be read
+     */
+    private void fill(int needed) throws IOException {
+        if(limit - position >= needed){
+            return;
+        }
+
+        System.arraycopy(buffer, position, buffer, 0, limit - position);
+        limit -= position;
+        position = 0;
+
+        while(limit < needed){
+            int read = input.read(buffer, limit, buffer.length - limit);
+            if(read < 0){
+                return;
+            }
+            limit += read;
+        }
+    }
+
+}
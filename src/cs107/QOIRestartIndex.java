@@ -0,0 +1,307 @@
+package cs107;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import static cs107.Helper.Image;
+
+/**
+ * Restart index of a standard "Quite Ok Image" file.
+ * The file is scanned once and, every interval pixels, a restart point records
+ * the index of the next chunk and the complete running state of the decoder
+ * (index, previous pixel and pending run). Starting from these points, the
+ * segments of the image can be decoded in parallel, without changing the file.
+ * @apiNote Layout of a sidecar (all the integers are "Big Endian") :
+ * <pre>
+ * magic (4) | interval (4) | point count (4) | size of the indexed file (4)
+ * points : point count * (index of the next chunk (4) | running state (QOISpecification.STATE_SIZE * 4))
+ * </pre>
+ * The point k restarts the decoding at the pixel k * interval.
+ * The points also let an edited image be re-encoded from the last point before the edit,
+ * keeping the chunks after the edit as they are (See reencode).
+ * Usage as a tool : java cs107.QOIRestartIndex file.qoi [interval], the sidecar is written to "res/"
+ * @version 1.3
+ * @since 1.3
+ */
+public final class QOIRestartIndex {
+
+    /**
+     * Magic Number of a restart index sidecar
+     */
+    public static final byte[] MAGIC = new byte[]{'q', 'o', 'i', 'x'};
+
+    /**
+     * Default number of pixels between two restart points
+     */
+    public static final int DEFAULT_INTERVAL = 1 << 16;
+
+    private static final int HEADER_SIZE = MAGIC.length + 4 + 4 + 4;
+    private static final int POINT_SIZE = (1 + QOISpecification.STATE_SIZE) * 4;
+
+    // Hide default constructor
+    private QOIRestartIndex(){}
+
+    /**
+     * A "Quite Ok Image" file with its restart index
+     * @param content (byte[]) - Content of the file
+     * @param sidecar (byte[]) - Restart index of the file (See build)
+     */
+    public record Indexed(byte[] content, byte[] sidecar){}
+
+    // ==================================================================================
+    // ================================== INDEX TOOL ====================================
+    // ==================================================================================
+
+    /**
+     * Build the restart index of a file and write it as a sidecar in "res/"
+     * @param args (String[]) - Path of the "QOI" file, then optionally the interval
+     */
+    public static void main(String[] args){
+        if(args.length < 1){
+            System.err.println("Usage : java cs107.QOIRestartIndex file.qoi [interval]");
+            return;
+        }
+        var interval = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_INTERVAL;
+        var sidecar = build(Helper.read(args[0]), interval);
+        var name = new File(args[0]).getName() + ".qoix";
+        Helper.write(name, sidecar);
+        System.out.printf("%s : %d restart points, %d bytes%n", name, ByteBuffer.wrap(sidecar).getInt(8), sidecar.length);
+    }
+
+    // ==================================================================================
+    // ================================== INDEX API =====================================
+    // ==================================================================================
+
+    /**
+     * Scan a "Quite Ok Image" file and record a restart point every interval pixels
+     * @param content (byte[]) - Content of the file to index
+     * @param interval (int) - Number of pixels between two restart points
+     * @return (byte[]) - The sidecar of the file
+     * @throws AssertionError if the content is null or corrupted or the interval is not positive
+     */
+    public static byte[] build(byte[] content, int interval){
+        assert content != null;
+        assert interval > 0;
+
+        int[] header = QOIDecoder.decodeHeader(Arrays.copyOf(content, QOISpecification.HEADER_SIZE));
+        long pixels = (long) header[0] * header[1];
+        int count = (int) ((pixels + interval - 1) / interval);
+
+        var sidecar = ByteBuffer.allocate(HEADER_SIZE + count * POINT_SIZE);
+        sidecar.put(MAGIC).putInt(interval).putInt(count).putInt(content.length);
+
+        int[] state = QOISpecification.initialState();
+        int[] scratch = new int[(int) Math.min(interval, pixels)];
+        int idx = QOISpecification.HEADER_SIZE;
+        for(int k=0 ; k<count ; ++k){
+            sidecar.putInt(idx);
+            for(int value : state){
+                sidecar.putInt(value);
+            }
+            int length = (int) Math.min(interval, pixels - (long) k * interval);
+            idx += QOIDecoder.decodeData(content, idx, state, scratch, 0, length);
+        }
+        assert idx == content.length - QOISpecification.QOI_EOF.length;
+
+        return sidecar.array();
+    }
+
+    /**
+     * Decode a "Quite Ok Image" file using its restart index : the segments between
+     * two restart points are decoded in parallel on the common ForkJoinPool
+     * @apiNote The result is the same as QOIDecoder.decodeQoiFile(content)
+     * @param content (byte[]) - Content of the file to decode
+     * @param sidecar (byte[]) - Restart index of the file (See build)
+     * @return (Image) - Decoded image
+     * @throws AssertionError if one of the arrays is null, corrupted, or
+     * if the sidecar was not built for this file
+     */
+    public static Image decodeQoiFile(byte[] content, byte[] sidecar){
+        assert content != null && sidecar != null;
+        assert sidecar.length >= HEADER_SIZE;
+        assert Arrays.equals(sidecar, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+
+        var index = ByteBuffer.wrap(sidecar);
+        int interval = index.getInt(4);
+        int count = index.getInt(8);
+        assert index.getInt(12) == content.length;
+        assert sidecar.length == HEADER_SIZE + count * POINT_SIZE;
+
+        int[] header = QOIDecoder.decodeHeader(Arrays.copyOf(content, QOISpecification.HEADER_SIZE));
+        int width = header[0];
+        int height = header[1];
+        int[] pixels = new int[width*height];
+        assert count == (pixels.length + interval - 1) / interval;
+
+        IntStream.range(0, count).parallel().forEach(k -> {
+            int from = k * interval;
+            QOIDecoder.decodeData(content, index.getInt(HEADER_SIZE + k * POINT_SIZE), state(index, k), pixels, from, Math.min(pixels.length, from + interval));
+        });
+
+        return Helper.generateImage(ArrayUtils.pixelsToImage(pixels, height, width), (byte) header[2], (byte) header[3]);
+    }
+
+    // ==================================================================================
+    // ============================== INCREMENTAL ENCODING ==============================
+    // ==================================================================================
+
+    /**
+     * Encode an image whose pixels only changed in a window since it was encoded, reusing
+     * the file of the previous version. The chunks before the last restart point preceding the
+     * window are kept, the pixels are encoded again from this point, and the chunks of the
+     * previous file are spliced back at the first restart point after the window where
+     * the running state of the decoder is the same in both files.
+     * @apiNote The time only depends on the pixels between the two restart points, plus two copies
+     * of the file : in a buffer with room for one more segment, then to its exact size. A run pending at a restart point is ended there, so the file decodes to the image
+     * but can differ by a few bytes from QOIEncoder.qoiFile(image). The restart points are the same
+     * @param content (byte[]) - Content of the file of the previous version of the image
+     * @param sidecar (byte[]) - Restart index of the previous file (See build)
+     * @param image (Image) - New version of the image, with the same dimensions, channels and color space
+     * @param x (int) - Column of the top left corner of the window
+     * @param y (int) - Row of the top left corner of the window
+     * @param width (int) - Width of the window
+     * @param height (int) - Height of the window
+     * @return (Indexed) - The file of the new version and its restart index
+     * @throws AssertionError if one of the arrays is null or corrupted, the sidecar was not built
+     * for this file, the image does not match the file or the window is empty or not inside the image
+     */
+    public static Indexed reencode(byte[] content, byte[] sidecar, Image image, int x, int y, int width, int height){
+        assert content != null && sidecar != null && image != null;
+        assert sidecar.length >= HEADER_SIZE;
+        assert Arrays.equals(sidecar, 0, MAGIC.length, MAGIC, 0, MAGIC.length);
+        var event = new QOIEvents.Encode();
+        event.begin();
+
+        var index = ByteBuffer.wrap(sidecar);
+        int interval = index.getInt(4);
+        int count = index.getInt(8);
+        assert index.getInt(12) == content.length;
+        assert sidecar.length == HEADER_SIZE + count * POINT_SIZE;
+
+        int[][] data = image.data();
+        int[] header = QOIDecoder.decodeHeader(Arrays.copyOf(content, QOISpecification.HEADER_SIZE));
+        assert header[0] == data[0].length && header[1] == data.length;
+        assert header[2] == image.channels() && header[3] == image.color_space();
+        assert width > 0 && height > 0;
+        assert x >= 0 && y >= 0 && x + width <= header[0] && y + height <= header[1];
+        int pixels = header[0] * header[1];
+        int first = y * header[0] + x;
+        int last = (y + height - 1) * header[0] + x + width - 1;
+
+        // Restart at a chunk boundary : the last point before the window without a pending run
+        int k = first / interval;
+        while(k > 0 && state(index, k)[QOISpecification.STATE_RUN] != 0){
+            --k;
+        }
+
+        int[] encoder = state(index, k);
+        int[] decoder = encoder.clone();
+        int[] scratch = new int[Math.min(interval, pixels)];
+        int[] decoded = new int[scratch.length];
+        byte[] segment = new byte[scratch.length * 5 + 1];
+
+        // Room for the previous file and one more segment : grown only if the new file is larger
+        byte[] output = new byte[content.length + segment.length];
+        int written = index.getInt(HEADER_SIZE + k * POINT_SIZE);
+        System.arraycopy(content, 0, output, 0, written);
+        var points = ByteBuffer.allocate(sidecar.length);
+        points.put(sidecar, 0, HEADER_SIZE + k * POINT_SIZE);
+
+        int splice = count;
+        for(int j=k ; j<count ; ++j){
+            putPoint(points, written, decoder);
+            int from = j * interval;
+            int to = Math.min(pixels, from + interval);
+            for(int p=from ; p<to ; ){
+                int row = p / header[0], column = p % header[0];
+                int length = Math.min(header[0] - column, to - p);
+                System.arraycopy(data[row], column, scratch, p - from, length);
+                p += length;
+            }
+
+            // End the segment on a chunk boundary, so that the points keep no pending run
+            int size = QOIEncoder.encodeData(scratch, 0, to - from, encoder, segment, 0);
+            size += QOIEncoder.encodeRun(encoder, segment, size);
+            int consumed = QOIDecoder.decodeData(segment, 0, decoder, decoded, 0, to - from);
+            assert consumed == size && Arrays.equals(scratch, 0, to - from, decoded, 0, to - from);
+            output = ensure(output, written + size);
+            System.arraycopy(segment, 0, output, written, size);
+            written += size;
+
+            if(to > last && j + 1 < count && Arrays.equals(decoder, state(index, j + 1))){
+                splice = j + 1;
+                break;
+            }
+        }
+
+        int reencoded = Math.min(pixels, splice * interval) - k * interval;
+        if(splice < count){
+            // The chunks after the splice decode the same pixels from the same state
+            int tail = index.getInt(HEADER_SIZE + splice * POINT_SIZE);
+            int shift = written - tail;
+            for(int j=splice ; j<count ; ++j){
+                int point = HEADER_SIZE + j * POINT_SIZE;
+                points.putInt(index.getInt(point) + shift);
+                points.put(sidecar, point + 4, POINT_SIZE - 4);
+            }
+            output = ensure(output, written + content.length - tail);
+            System.arraycopy(content, tail, output, written, content.length - tail);
+            written += content.length - tail;
+        }else{
+            output = ensure(output, written + QOISpecification.QOI_EOF.length);
+            System.arraycopy(QOISpecification.QOI_EOF, 0, output, written, QOISpecification.QOI_EOF.length);
+            written += QOISpecification.QOI_EOF.length;
+        }
+
+        byte[] file = written == output.length ? output : Arrays.copyOf(output, written);
+        points.putInt(12, file.length);
+        event.end(null, header[0], header[1], image.channels(), 4L * reencoded, file.length);
+
+        return new Indexed(file, points.array());
+    }
+
+    // ==================================================================================
+    // ================================== INDEX HELPERS =================================
+    // ==================================================================================
+
+    /**
+     * Read the running state of a restart point
+     * @param index (ByteBuffer) - The sidecar
+     * @param k (int) - Number of the point
+     * @return (int[]) - A copy of the state (See QOISpecification.initialState)
+     */
+    private static int[] state(ByteBuffer index, int k){
+        int point = HEADER_SIZE + k * POINT_SIZE;
+        int[] state = new int[QOISpecification.STATE_SIZE];
+        for(int i=0 ; i<state.length ; ++i){
+            state[i] = index.getInt(point + 4 + i * 4);
+        }
+        return state;
+    }
+
+    /**
+     * Grow a buffer, if needed, so that it can hold the given number of bytes
+     * @param buffer (byte[]) - Buffer being written
+     * @param size (int) - Number of bytes needed
+     * @return (byte[]) - The buffer, or a larger copy of it
+     */
+    private static byte[] ensure(byte[] buffer, int size){
+        return buffer.length >= size ? buffer : Arrays.copyOf(buffer, Math.max(size, buffer.length / 2 * 3));
+    }
+
+    /**
+     * Write a restart point at the position of the sidecar
+     * @param points (ByteBuffer) - The sidecar being written
+     * @param offset (int) - Index of the next chunk in the file
+     * @param state (int[]) - Running state of the decoder at the point
+     */
+    private static void putPoint(ByteBuffer points, int offset, int[] state){
+        points.putInt(offset);
+        for(int value : state){
+            points.putInt(value);
+        }
+    }
+
+}
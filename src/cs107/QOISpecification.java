@@ -1,5 +1,7 @@
 package cs107;
 
+import java.util.Arrays;
+
 /**
  * Utility class to describe the "Quite Ok Image" Specification
  * @author Hamza REMMAL (hamza.remmal@epfl.ch)
@@ -77,6 +79,11 @@ public final class QOISpecification {
      */
     public static final byte[] START_PIXEL = new byte[]{0, 0, 0, (byte) 255};
 
+    /**
+     * First pixel to be stored as "previous pixel" when encoding and decoding packed (ARGB) pixels
+     */
+    public static final int START_PIXEL_ARGB = 0xFF_00_00_00;
+
     // ==================================================================================
     // ============================ "Quite Ok Image" EOF ================================
     // ==================================================================================
@@ -120,6 +127,103 @@ public final class QOISpecification {
      */
     public static final byte QOI_OP_RUN_TAG   = (byte) 0b11_00_00_00; 
 
+    // ==================================================================================
+    // ======================= "Quite Ok Image" Running State ===========================
+    // ==================================================================================
+
+    /**
+     * Position of the previous pixel (packed as ARGB) in a running state.
+     * The positions 0 to 63 of a running state are the entries of the index
+     */
+    public static final int STATE_PREVIOUS = 64;
+
+    /**
+     * Position of the length of the current run in a running state
+     */
+    public static final int STATE_RUN = 65;
+
+    /**
+     * Size of the running state shared by the encoder and the decoder
+     */
+    public static final int STATE_SIZE = 66;
+
+    /**
+     * Create the running state to use at the start of an image :
+     * an empty index, START_PIXEL as previous pixel and no pending run
+     * @return (int[]) - A fresh running state
+     */
+    public static int[] initialState(){
+        int[] state = new int[STATE_SIZE];
+        state[STATE_PREVIOUS] = START_PIXEL_ARGB;
+        return state;
+    }
+
+    /**
+     * Reset a running state to the one to use at the start of an image (See initialState)
+     * @param state (int[]) - Running state to reset, in place
+     * @throws AssertionError if the state is null or has not the right size
+     */
+    public static void resetState(int[] state){
+        assert state != null && state.length == STATE_SIZE;
+        Arrays.fill(state, 0);
+        state[STATE_PREVIOUS] = START_PIXEL_ARGB;
+        if(QOIStatistics.ENABLED) QOIStatistics.current().resetState(state);
+    }
+
+    // ==================================================================================
+    // ==================== "Quite Ok Image" Parallel Container (QOIP) ==================
+    // ==================================================================================
+
+    /**
+     * Magic Number of a "Quite Ok Image" parallel container.
+     * @apiNote A container is made of a header, an offset table and strips :
+     * <pre>
+     * magic (4) | width (4) | height (4) | channels (1) | color space (1) | strip height (4) | strip count (4)
+     * offsets ((strip count + 1) * 4) : index of the first byte of each strip, then the size of the container
+     * strips : each strip is a complete "Quite Ok Image" file of strip height rows (the last one can be shorter)
+     * </pre>
+     * All the integers are "Big Endian"
+     */
+    public static final byte[] QOIP_MAGIC = new byte[]{'q', 'o', 'i', 'p'};
+
+    /**
+     * Size of a "Quite Ok Image" parallel container header, without the offset table
+     */
+    public static final int QOIP_HEADER_SIZE = QOIP_MAGIC.length + 4 + 4 + 1 + 1 + 4 + 4;
+
+    // ==================================================================================
+    // ================== "Quite Ok Image" Compressed Container (QOIZ) ==================
+    // ==================================================================================
+
+    /**
+     * Magic Number of a "Quite Ok Image" compressed container.
+     * @apiNote A container is a "Quite Ok Image" file cut in chunks, each chunk being compressed
+     * on its own with "Deflate" :
+     * <pre>
+     * magic (4) | chunk size (4)
+     * chunks : size of the chunk in the file (4) | size of the compressed chunk (4) | compressed chunk
+     * end : a chunk of size 0, without compressed bytes
+     * </pre>
+     * A chunk whose compressed size equals its size is stored as is.
+     * All the integers are "Big Endian"
+     */
+    public static final byte[] QOIZ_MAGIC = new byte[]{'q', 'o', 'i', 'z'};
+
+    /**
+     * Size of a "Quite Ok Image" compressed container header
+     */
+    public static final int QOIZ_HEADER_SIZE = QOIZ_MAGIC.length + 4;
+
+    /**
+     * Size of the header of a chunk in a "Quite Ok Image" compressed container
+     */
+    public static final int QOIZ_CHUNK_HEADER_SIZE = 4 + 4;
+
+    /**
+     * Largest chunk size of a "Quite Ok Image" compressed container (64 MiB)
+     */
+    public static final int QOIZ_MAX_CHUNK_SIZE = 1 << 26;
+
     // ==================================================================================
     // ======================== "Quite Ok Image" Hash Function ==========================
     // ==================================================================================
@@ -136,4 +240,15 @@ public final class QOISpecification {
         return (byte) (tmp < 0 ? tmp + 64 : tmp);
     }
 
+    /**
+     * Hash a given packed pixel using the hash function specific to "Quite Ok Image" format
+     * @apiNote index = (r * 3 + g * 5 + b * 7 + a * 11) % 64
+     * @param pixel (int) - Pixel to hash, packed as ARGB
+     * @return (int) - hash of the pixel
+     */
+    public static int hash(int pixel){
+        var tmp = (pixel >>> 16 & 0xFF) * 3 + (pixel >>> 8 & 0xFF) * 5 + (pixel & 0xFF) * 7 + (pixel >>> 24) * 11;
+        return tmp & 0b00_11_11_11;
+    }
+
 }
\ No newline at end of file
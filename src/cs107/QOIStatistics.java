@@ -0,0 +1,315 @@
+package cs107;
+
+import java.lang.ref.Cleaner;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Statistics of the "Quite Ok Image" encoder and decoder : number of chunks of each type,
+ * histogram of the lengths of the runs, hits and collisions in the index of the encoder,
+ * and time spent in each phase (header, data and conversion of the pixels).
+ * @apiNote The statistics are only collected when the JVM is started with -Dcs107.statistics=true.
+ * Otherwise ENABLED is a constant false and the JIT removes all the hooks, so they cost nothing.
+ * Each thread records in its own instance, without synchronization; snapshot() sums them.
+ * When a thread ends and is collected, its counts are folded in a shared total, so that
+ * the threads of short-lived pools are neither lost nor kept
+ * @version 1.3
+ * @since 1.3
+ */
+public final class QOIStatistics {
+
+    /**
+     * true if the statistics are collected, read once from the "cs107.statistics" system property
+     */
+    public static final boolean ENABLED = Boolean.getBoolean("cs107.statistics");
+
+    /**
+     * Types of chunks, in the order of the counters
+     */
+    public static final String[] CHUNKS = {"RGB", "RGBA", "INDEX", "DIFF", "LUMA", "RUN"};
+
+    /**
+     * Phases of the encoding and of the decoding
+     */
+    public enum Phase {
+        /** Writing or reading the header */
+        HEADER,
+        /** Encoding or decoding the chunks */
+        DATA,
+        /** Converting the pixels between the formats of ArrayUtils */
+        CONVERSION
+    }
+
+    private static final int RGB = 0, RGBA = 1, INDEX = 2, DIFF = 3, LUMA = 4, RUN = 5;
+
+    // Instances of the live threads, the instance of a thread is only written by this thread
+    private static final Queue<QOIStatistics> INSTANCES = new ConcurrentLinkedQueue<>();
+    // Sum of the instances of the threads that were collected, guarded by itself
+    private static final QOIStatistics RETIRED = new QOIStatistics();
+    private static final Cleaner CLEANER = Cleaner.create();
+    private static final ThreadLocal<QOIStatistics> CURRENT = ThreadLocal.withInitial(() -> {
+        var statistics = new QOIStatistics();
+        INSTANCES.add(statistics);
+        // The action only holds the instance, never the thread, so the thread can be collected
+        CLEANER.register(Thread.currentThread(), () -> retire(statistics));
+        return statistics;
+    });
+
+    private final long[] encoded = new long[CHUNKS.length];
+    private final long[] decoded = new long[CHUNKS.length];
+    // Number of run chunks by length (index 0 for a run of 1 pixel)
+    private final long[] encodedRuns = new long[62];
+    private final long[] decodedRuns = new long[62];
+    private long hits;
+    private long collisions;
+    private long misses;
+    private final long[] nanos = new long[Phase.values().length];
+    // Slots of the index that were written since the start of the image, one bit per slot,
+    // for the running state the encoder used last
+    private int[] indexed;
+    private long occupied;
+
+    private QOIStatistics(){}
+
+    // ==================================================================================
+    // ================================ STATISTICS API ==================================
+    // ==================================================================================
+
+    /**
+     * Statistics of the current thread, where the hooks record
+     * @return (QOIStatistics) - The statistics of the current thread
+     */
+    public static QOIStatistics current(){
+        return CURRENT.get();
+    }
+
+    /**
+     * Sum of the statistics of all the threads
+     * @apiNote The threads still running can record during the sum
+     * @return (QOIStatistics) - A new instance, not updated by the hooks
+     */
+    public static QOIStatistics snapshot(){
+        var sum = new QOIStatistics();
+        // Under the lock, so that an instance being retired is counted exactly once
+        synchronized(RETIRED){
+            sum.add(RETIRED);
+            for(var statistics : INSTANCES){
+                sum.add(statistics);
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Clear the statistics of all the threads, including the ones that ended
+     */
+    public static void reset(){
+        synchronized(RETIRED){
+            RETIRED.clear();
+            for(var statistics : INSTANCES){
+                statistics.clear();
+            }
+        }
+    }
+
+    /**
+     * @return (int) - Number of threads whose statistics are not folded in the shared total yet
+     */
+    static int live(){
+        return INSTANCES.size();
+    }
+
+    /**
+     * Export the statistics, with one entry per counter : "encode.RGB" ... "encode.RUN",
+     * "decode.RGB" ... "decode.RUN", "encode.run.1" ... "encode.run.62" and "decode.run.1" ...
+     * "decode.run.62" (only the lengths that were seen), "index.hits", "index.collisions"
+     * (slot holding another pixel), "index.misses" (slot never written since the start of the image) and "time.HEADER", "time.DATA", "time.CONVERSION" in nanoseconds
+     * @return (Map) - The counters by name, in this order
+     */
+    public Map<String, Long> toMap(){
+        var map = new LinkedHashMap<String, Long>();
+        for(var i = 0; i < CHUNKS.length; ++i)
+            map.put("encode." + CHUNKS[i], encoded[i]);
+        for(var i = 0; i < CHUNKS.length; ++i)
+            map.put("decode." + CHUNKS[i], decoded[i]);
+        for(var i = 0; i < encodedRuns.length; ++i)
+            if(encodedRuns[i] != 0) map.put("encode.run." + (i + 1), encodedRuns[i]);
+        for(var i = 0; i < decodedRuns.length; ++i)
+            if(decodedRuns[i] != 0) map.put("decode.run." + (i + 1), decodedRuns[i]);
+        map.put("index.hits", hits);
+        map.put("index.collisions", collisions);
+        map.put("index.misses", misses);
+        for(var phase : Phase.values())
+            map.put("time." + phase, nanos[phase.ordinal()]);
+        return map;
+    }
+
+    /**
+     * Format the statistics as a human-readable report
+     * @return (String) - The report
+     */
+    public String report(){
+        var report = new StringBuilder();
+        report.append(String.format("%-8s %14s %7s %14s %7s%n", "chunk", "encoded", "%", "decoded", "%"));
+        long encodedTotal = sum(encoded), decodedTotal = sum(decoded);
+        for(var i = 0; i < CHUNKS.length; ++i){
+            report.append(String.format("%-8s %14d %6.2f%% %14d %6.2f%%%n", CHUNKS[i],
+                    encoded[i], percent(encoded[i], encodedTotal), decoded[i], percent(decoded[i], decodedTotal)));
+        }
+
+        long lookups = hits + collisions + misses;
+        report.append(String.format("index : %d lookups, %.2f%% hits, %.2f%% collisions, %.2f%% empty slots%n",
+                lookups, percent(hits, lookups), percent(collisions, lookups), percent(misses, lookups)));
+
+        report.append("run lengths (encoded / decoded) :");
+        for(var i = 0; i < encodedRuns.length; ++i){
+            if(encodedRuns[i] != 0 || decodedRuns[i] != 0)
+                report.append(String.format(" %d=%d/%d", i + 1, encodedRuns[i], decodedRuns[i]));
+        }
+        report.append(String.format("%n"));
+
+        for(var phase : Phase.values())
+            report.append(String.format("%-10s %12.3f ms%n", phase, nanos[phase.ordinal()] / 1e6));
+        return report.toString();
+    }
+
+    // ==================================================================================
+    // ==================================== HOOKS =======================================
+    // ==================================================================================
+    // Only called under "if(QOIStatistics.ENABLED)"
+
+    /**
+     * Record an encoded chunk, other than a run
+     * @param tag (byte) - First byte of the chunk
+     */
+    void encoded(byte tag){
+        encoded[type(tag)]++;
+    }
+
+    /**
+     * Record a lookup in the index of the encoder, before the index is updated
+     * @apiNote A slot is told empty from a slot holding the pixel 0 by the slots written since the
+     * state was reset. The first lookup in a state already in use counts its non-zero slots as written
+     * @param state (int[]) - Running state of the encoder
+     * @param pixel (int) - Pixel being encoded
+     */
+    void lookup(int[] state, int pixel){
+        if(state != indexed){
+            indexed = state;
+            occupied = 0;
+            for(var i = 0; i < 64; ++i)
+                if(state[i] != 0) occupied |= 1L << i;
+        }
+        int hash = QOISpecification.hash(pixel);
+        long bit = 1L << hash;
+        if(state[hash] == pixel) hits++;
+        else if((occupied & bit) != 0) collisions++;
+        else misses++;
+        occupied |= bit;
+    }
+
+    /**
+     * Record that a running state was reset to the start of an image, so its index is empty
+     * @param state (int[]) - Running state that was reset
+     */
+    void resetState(int[] state){
+        if(state == indexed)
+            occupied = 0;
+    }
+
+    /**
+     * Record an encoded run chunk
+     * @param length (int) - Number of pixels of the run, from 1 to 62
+     */
+    void encodedRun(int length){
+        encoded[RUN]++;
+        encodedRuns[length - 1]++;
+    }
+
+    /**
+     * Record a decoded chunk
+     * @param tag (byte) - First byte of the chunk
+     */
+    void decoded(byte tag){
+        int type = type(tag);
+        decoded[type]++;
+        if(type == RUN)
+            decodedRuns[tag & 0b00_11_11_11]++;
+    }
+
+    /**
+     * Record the time spent in a phase
+     * @param phase (Phase) - Phase that ends
+     * @param start (long) - Value of System.nanoTime() when the phase started
+     */
+    void time(Phase phase, long start){
+        nanos[phase.ordinal()] += System.nanoTime() - start;
+    }
+
+    /**
+     * @return (long) - Value of System.nanoTime() if the statistics are collected, 0 otherwise
+     */
+    static long start(){
+        return ENABLED ? System.nanoTime() : 0;
+    }
+
+    // ==================================================================================
+
+    private static int type(byte tag){
+        if(tag == QOISpecification.QOI_OP_RGB_TAG) return RGB;
+        if(tag == QOISpecification.QOI_OP_RGBA_TAG) return RGBA;
+        return switch ((byte) (tag & 0b11_00_00_00)){
+            case QOISpecification.QOI_OP_INDEX_TAG -> INDEX;
+            case QOISpecification.QOI_OP_DIFF_TAG -> DIFF;
+            case QOISpecification.QOI_OP_LUMA_TAG -> LUMA;
+            default -> RUN;
+        };
+    }
+
+    private static void retire(QOIStatistics statistics){
+        synchronized(RETIRED){
+            RETIRED.add(statistics);
+            INSTANCES.remove(statistics);
+        }
+    }
+
+    private void add(QOIStatistics statistics){
+        add(encoded, statistics.encoded);
+        add(decoded, statistics.decoded);
+        add(encodedRuns, statistics.encodedRuns);
+        add(decodedRuns, statistics.decodedRuns);
+        add(nanos, statistics.nanos);
+        hits += statistics.hits;
+        collisions += statistics.collisions;
+        misses += statistics.misses;
+    }
+
+    private void clear(){
+        Arrays.fill(encoded, 0);
+        Arrays.fill(decoded, 0);
+        Arrays.fill(encodedRuns, 0);
+        Arrays.fill(decodedRuns, 0);
+        Arrays.fill(nanos, 0);
+        hits = collisions = misses = 0;
+    }
+
+    private static void add(long[] sum, long[] values){
+        for(var i = 0; i < sum.length; ++i)
+            sum[i] += values[i];
+    }
+
+    private static long sum(long[] values){
+        long sum = 0;
+        for(var value : values)
+            sum += value;
+        return sum;
+    }
+
+    private static double percent(long value, long total){
+        return total == 0 ? 0 : 100d * value / total;
+    }
+
+}
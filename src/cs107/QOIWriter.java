@@ -0,0 +1,125 @@
+package cs107;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Streaming "Quite Ok Image" Encoder.
+ * The header is written when the writer is created, then the pixels are pushed
+ * a row (or any number of pixels) at a time. The running state is carried from
+ * one call to the other and the encoding goes through a small fixed buffer,
+ * so the memory used doesn't depend on the size of the image.
+ * @apiNote The "End Of File" is written when the writer is closed
+ * @version 1.3
+ * @since 1.3
+ */
+public final class QOIWriter implements Closeable {
+
+    /**
+     * Size of the buffer used to write to the output stream
+     */
+    public static final int BUFFER_SIZE = 8192;
+
+    private final OutputStream output;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final int[] state = QOISpecification.initialState();
+    private final long pixels;
+
+    private int position;
+    private long written;
+    private boolean closed;
+
+    /**
+     * Create a new writer and write the "Quite Ok Image" header
+     * @param output (OutputStream) - Stream where to write the file, closed with the writer
+     * @param width (int) - Width of the image
+     * @param height (int) - Height of the image
+     * @param channels (byte) - Number of channels of the image
+     * @param colorSpace (byte) - Color space of the image
+     * @throws AssertionError if the output is null or the header is corrupted
+     */
+    public QOIWriter(OutputStream output, int width, int height, byte channels, byte colorSpace){
+        assert output != null;
+
+        this.output = output;
+        this.pixels = (long) width * height;
+        this.position = QOIEncoder.qoiHeader(width, height, channels, colorSpace, buffer, 0);
+    }
+
+    /**
+     * Encode the next row of the image
+     * @param row (int[]) - Packed (ARGB) pixels to encode
+     * @throws IOException if the output stream cannot be written
+     */
+    public void writeRow(int[] row) throws IOException {
+        write(row, 0, row.length);
+    }
+
+    /**
+     * Encode the next pixels of the image
+     * @param image (int[]) - Packed (ARGB) pixels to encode
+     * @param offset (int) - Index of the first pixel to encode
+     * @param length (int) - Number of pixels to encode
+     * @throws IOException if the output stream cannot be written
+     * @throws AssertionError if the writer is closed, the slice is invalid
+     * or there are more pixels than in the image
+     */
+    public void write(int[] image, int offset, int length) throws IOException {
+        assert !closed;
+        assert image != null && offset >= 0 && length >= 0 && offset + length <= image.length;
+        assert written + length <= pixels;
+
+        while(length > 0){
+            // Worst case : the pending run (1 byte) then one QOI_OP_RGBA (5 bytes) per pixel
+            if(buffer.length - position < 6){
+                flushBuffer();
+            }
+            int count = Math.min(length, (buffer.length - position - 1) / 5);
+
+            position += QOIEncoder.encodeData(image, offset, offset + count, state, buffer, position);
+            offset += count;
+            length -= count;
+            written += count;
+        }
+    }
+
+    /**
+     * Number of pixels encoded so far
+     * @return (long) - The number of pixels
+     */
+    public long written(){
+        return written;
+    }
+
+    /**
+     * Write the pending run and the "End Of File", then close the output stream
+     * @throws IOException if the output stream cannot be written
+     * @throws AssertionError if some pixels of the image are missing
+     */
+    @Override
+    public void close() throws IOException {
+        if(closed){
+            return;
+        }
+        closed = true;
+        assert written == pixels;
+
+        if(buffer.length - position < 1 + QOISpecification.QOI_EOF.length){
+            flushBuffer();
+        }
+        position += QOIEncoder.encodeRun(state, buffer, position);
+        System.arraycopy(QOISpecification.QOI_EOF, 0, buffer, position, QOISpecification.QOI_EOF.length);
+        position += QOISpecification.QOI_EOF.length;
+
+        try(output){
+            flushBuffer();
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        output.write(buffer, 0, position);
+        position = 0;
+    }
+
+}
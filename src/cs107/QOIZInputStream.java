@@ -0,0 +1,158 @@
+package cs107;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Input stream reading a "Quite Ok Image" compressed container (See QOISpecification.QOIZ_MAGIC).
+ * The chunks are decompressed one at a time, when they are needed, so the stream can
+ * directly feed a QOIReader and the memory used only depends on the size of the chunks.
+ * @version 1.3
+ * @since 1.3
+ */
+public final class QOIZInputStream extends FilterInputStream {
+
+    private final Inflater inflater = new Inflater();
+    private final byte[] chunk;
+    private final byte[] header = new byte[QOISpecification.QOIZ_CHUNK_HEADER_SIZE];
+    private byte[] compressed = new byte[0];
+
+    private int position;
+    private int limit;
+    private boolean ended;
+
+    /**
+     * Create a new stream and read the container header
+     * @param input (InputStream) - Stream to read the container from, closed with this stream
+     * @throws IOException if the stream cannot be read, ends before the end of the header, or the chunk
+     * size is not positive or larger than QOISpecification.QOIZ_MAX_CHUNK_SIZE
+     * @throws AssertionError if the input is null or the magic number is corrupted
+     */
+    public QOIZInputStream(InputStream input) throws IOException {
+        super(input);
+        assert input != null;
+
+        byte[] magic = new byte[QOISpecification.QOIZ_HEADER_SIZE];
+        readFully(magic, magic.length);
+        assert Arrays.equals(magic, 0, QOISpecification.QOIZ_MAGIC.length,
+                QOISpecification.QOIZ_MAGIC, 0, QOISpecification.QOIZ_MAGIC.length);
+        // The chunk size is checked before the allocation, whether the assertions are enabled or not
+        int chunkSize = QOIDecoder.readInt(magic, QOISpecification.QOIZ_MAGIC.length);
+        if(chunkSize <= 0 || chunkSize > QOISpecification.QOIZ_MAX_CHUNK_SIZE){
+            throw new IOException("Corrupted container header : chunks of " + chunkSize + " bytes");
+        }
+        this.chunk = new byte[chunkSize];
+    }
+
+    @Override
+    public int read() throws IOException {
+        if(position == limit && !nextChunk()){
+            return -1;
+        }
+        return chunk[position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        assert b != null && off >= 0 && len >= 0 && off + len <= b.length;
+        if(len == 0){
+            return 0;
+        }
+        if(position == limit && !nextChunk()){
+            return -1;
+        }
+        int count = Math.min(len, limit - position);
+        System.arraycopy(chunk, position, b, off, count);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = 0;
+        while(skipped < n && (position < limit || nextChunk())){
+            int count = (int) Math.min(n - skipped, limit - position);
+            position += count;
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available(){
+        return limit - position;
+    }
+
+    @Override
+    public boolean markSupported(){
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.end();
+        in.close();
+    }
+
+    /**
+     * Read and decompress the next chunk
+     * @return (boolean) - false if the end of the container was reached
+     * @throws IOException if the stream cannot be read, ends before the end of the container or is corrupted
+     */
+    private boolean nextChunk() throws IOException {
+        if(ended){
+            return false;
+        }
+        readFully(header, header.length);
+        int size = QOIDecoder.readInt(header, 0);
+        int stored = QOIDecoder.readInt(header, 4);
+        if(size == 0){
+            ended = true;
+            return false;
+        }
+        if(size < 0 || size > chunk.length || stored <= 0 || stored > size){
+            throw new IOException("Corrupted chunk header");
+        }
+
+        if(stored == size){
+            readFully(chunk, size);
+        }else{
+            if(compressed.length < stored){
+                compressed = new byte[Math.max(stored, compressed.length * 2)];
+            }
+            readFully(compressed, stored);
+            inflater.reset();
+            inflater.setInput(compressed, 0, stored);
+            try{
+                int inflated = 0;
+                while(inflated < size && !inflater.finished()){
+                    int count = inflater.inflate(chunk, inflated, size - inflated);
+                    if(count == 0 && (inflater.needsInput() || inflater.needsDictionary())){
+                        break;
+                    }
+                    inflated += count;
+                }
+                if(inflated != size){
+                    throw new IOException("Corrupted chunk : " + inflated + " bytes instead of " + size);
+                }
+            }catch (DataFormatException e){
+                throw new IOException("Corrupted chunk", e);
+            }
+        }
+        position = 0;
+        limit = size;
+        return true;
+    }
+
+    private void readFully(byte[] buffer, int length) throws IOException {
+        if(in.readNBytes(buffer, 0, length) < length){
+            throw new EOFException("The stream ends before the end of the container");
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+package cs107;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+/**
+ * Output stream writing a "Quite Ok Image" compressed container (See QOISpecification.QOIZ_MAGIC).
+ * The bytes written to the stream, usually a "Quite Ok Image" file written by a QOIWriter,
+ * are cut in chunks of a fixed size and each chunk is compressed on its own with "Deflate".
+ * Only one chunk is buffered, so the memory used only depends on the size of the chunks.
+ * @apiNote Larger chunks and higher levels give smaller containers for more CPU. A chunk that
+ * "Deflate" cannot shrink is stored as is. The end of the container is written when the stream is closed
+ * @version 1.3
+ * @since 1.3
+ */
+public final class QOIZOutputStream extends FilterOutputStream {
+
+    /**
+     * Default size of the chunks
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 16;
+
+    private final Deflater deflater;
+    private final byte[] chunk;
+    private final byte[] compressed;
+    private final byte[] header = new byte[QOISpecification.QOIZ_CHUNK_HEADER_SIZE];
+
+    private int position;
+    private boolean closed;
+
+    /**
+     * Create a new stream with the default chunk size and compression level, and write the container header
+     * @param output (OutputStream) - Stream where to write the container, closed with this stream
+     * @throws IOException if the output stream cannot be written
+     */
+    public QOIZOutputStream(OutputStream output) throws IOException {
+        this(output, DEFAULT_CHUNK_SIZE, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Create a new stream and write the container header
+     * @param output (OutputStream) - Stream where to write the container, closed with this stream
+     * @param chunkSize (int) - Number of bytes compressed at once
+     * @param level (int) - "Deflate" compression level, from 0 (no compression) to 9, or -1 for the default
+     * @throws IOException if the output stream cannot be written
+     * @throws AssertionError if the output is null, the chunk size is not positive or larger than
+     * QOISpecification.QOIZ_MAX_CHUNK_SIZE, or the level is invalid
+     */
+    public QOIZOutputStream(OutputStream output, int chunkSize, int level) throws IOException {
+        super(output);
+        assert output != null;
+        assert chunkSize > 0 && chunkSize <= QOISpecification.QOIZ_MAX_CHUNK_SIZE;
+        assert level == Deflater.DEFAULT_COMPRESSION || (level >= Deflater.NO_COMPRESSION && level <= Deflater.BEST_COMPRESSION);
+
+        this.deflater = new Deflater(level);
+        this.chunk = new byte[chunkSize];
+        // "Deflate" never grows the data by more than 5 bytes per 16 KiB block, plus a few bytes
+        this.compressed = new byte[chunkSize + (chunkSize >> 12) + 64];
+
+        byte[] magic = new byte[QOISpecification.QOIZ_HEADER_SIZE];
+        System.arraycopy(QOISpecification.QOIZ_MAGIC, 0, magic, 0, QOISpecification.QOIZ_MAGIC.length);
+        QOIEncoder.writeInt(chunkSize, magic, QOISpecification.QOIZ_MAGIC.length);
+        out.write(magic);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        assert !closed;
+        if(position == chunk.length){
+            writeChunk();
+        }
+        chunk[position++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        assert !closed;
+        assert b != null && off >= 0 && len >= 0 && off + len <= b.length;
+
+        while(len > 0){
+            if(position == chunk.length){
+                writeChunk();
+            }
+            int count = Math.min(len, chunk.length - position);
+            System.arraycopy(b, off, chunk, position, count);
+            position += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * Flush the underlying stream. The buffered bytes are kept until the chunk is full,
+     * so that all the chunks but the last one have the same size
+     * @throws IOException if the output stream cannot be flushed
+     */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Write the last chunk and the end of the container, then close the output stream
+     * @throws IOException if the output stream cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        if(closed){
+            return;
+        }
+        closed = true;
+
+        try{
+            if(position > 0){
+                writeChunk();
+            }
+            // The header of an empty chunk
+            Arrays.fill(header, (byte) 0);
+            out.write(header);
+        }finally{
+            deflater.end();
+            out.close();
+        }
+    }
+
+    /**
+     * Compress the buffered chunk and write it
+     * @throws IOException if the output stream cannot be written
+     */
+    private void writeChunk() throws IOException {
+        deflater.reset();
+        deflater.setInput(chunk, 0, position);
+        deflater.finish();
+        int size = 0;
+        while(!deflater.finished() && size < compressed.length){
+            size += deflater.deflate(compressed, size, compressed.length - size);
+        }
+
+        QOIEncoder.writeInt(position, header, 0);
+        if(deflater.finished() && size < position){
+            QOIEncoder.writeInt(size, header, 4);
+            out.write(header);
+            out.write(compressed, 0, size);
+        }else{
+            // Not compressible, stored as is
+            QOIEncoder.writeInt(position, header, 4);
+            out.write(header);
+            out.write(chunk, 0, position);
+        }
+        position = 0;
+    }
+
+}
@@ -0,0 +1,126 @@
+package cs107;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Thread-safe least-recently-used map bounded by the total weight of its values,
+ * shared by the caches of the codec (See QOIEncodeCache and QOIDecodeCache).
+ * The entries are spread over STRIPES access-ordered maps, each with its own lock, so that
+ * accesses to different keys rarely wait for each other; the eviction is least-recently-used
+ * within a map, starting with the map of the entry that made the weight exceed the capacity
+ * @param <K> - Type of the keys
+ * @param <V> - Type of the values
+ * @version 1.3
+ * @since 1.3
+ */
+final class StripedLru<K, V> {
+
+    /**
+     * Number of independent maps (and locks)
+     */
+    static final int STRIPES = 16;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final LinkedHashMap<K, V>[] stripes = new LinkedHashMap[STRIPES];
+    private final long capacity;
+    private final ToLongFunction<V> weigher;
+
+    private final AtomicLong weight = new AtomicLong();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacity (long) - Maximal total weight of the values
+     * @param weigher (ToLongFunction) - Weight of a value, such as its number of bytes
+     */
+    StripedLru(long capacity, ToLongFunction<V> weigher){
+        assert capacity > 0 && weigher != null;
+        this.capacity = capacity;
+        this.weigher = weigher;
+        for(int i=0 ; i<STRIPES ; ++i){
+            stripes[i] = new LinkedHashMap<>(16, 0.75f, true);
+        }
+    }
+
+    /**
+     * @return (V) - The value of the key, now the most recently used of its map, or null
+     */
+    V get(K key){
+        var stripe = stripes[stripe(key)];
+        synchronized (stripe){
+            return stripe.get(key);
+        }
+    }
+
+    /**
+     * Add a value, then evict the least recently used values until the weight fits.
+     * A value heavier than the whole capacity is not kept
+     */
+    void put(K key, V value){
+        long added = weigher.applyAsLong(value);
+        if(added > capacity){
+            return;
+        }
+        int first = stripe(key);
+        var stripe = stripes[first];
+        synchronized (stripe){
+            var previous = stripe.put(key, value);
+            weight.addAndGet(added - (previous == null ? 0 : weigher.applyAsLong(previous)));
+        }
+
+        for(int i=0 ; i<STRIPES && weight.get() > capacity ; ++i){
+            var victim = stripes[(first + i) & (STRIPES - 1)];
+            synchronized (victim){
+                Iterator<Map.Entry<K, V>> eldest = victim.entrySet().iterator();
+                while(weight.get() > capacity && eldest.hasNext()){
+                    var entry = eldest.next();
+                    // Never evict the value just added
+                    if(entry.getValue() == value){
+                        continue;
+                    }
+                    weight.addAndGet(-weigher.applyAsLong(entry.getValue()));
+                    eldest.remove();
+                    evictions.increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove all the values
+     */
+    void clear(){
+        for(var stripe : stripes){
+            synchronized (stripe){
+                for(var value : stripe.values()){
+                    weight.addAndGet(-weigher.applyAsLong(value));
+                }
+                stripe.clear();
+            }
+        }
+    }
+
+    /**
+     * @return (long) - Total weight of the values
+     */
+    long weight(){
+        return weight.get();
+    }
+
+    /**
+     * @return (long) - Number of values evicted to make room
+     */
+    long evictions(){
+        return evictions.sum();
+    }
+
+    private static int stripe(Object key){
+        int h = key.hashCode();
+        return (h ^ h >>> 16) & (STRIPES - 1);
+    }
+
+}